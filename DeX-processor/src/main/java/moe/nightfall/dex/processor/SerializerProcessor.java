@@ -0,0 +1,267 @@
+package moe.nightfall.dex.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+
+import moe.nightfall.dex.DeX;
+import moe.nightfall.dex.DeXTable;
+import moe.nightfall.dex.serialize.DeXSerializable;
+import moe.nightfall.dex.serialize.DeXSerializable.DeXDeserializer;
+import moe.nightfall.dex.serialize.DeXSerializable.DeXSerializer;
+import moe.nightfall.dex.serialize.DeXSerializable.Serialize;
+import moe.nightfall.dex.serialize.Serialization;
+
+/**
+ * Generates a {@link DeXSerializable.Serializer} for every {@link DeXSerializable} class that is compiled,
+ * {@link Serialization#forClass(Class)} picks it up instead of reflecting on the class.
+ *
+ * The serializer is put next to the class, so it can only use members that aren't private.
+ * If it would need a private field, method or constructor, or has to set a final field,
+ * nothing is generated and the class is serialized by reflection like before.
+ *
+ * @author Vic
+ */
+public class SerializerProcessor extends AbstractProcessor {
+
+	@Override
+	public Set<String> getSupportedAnnotationTypes() {
+		// Classes don't need an annotation to be serializable
+		return Collections.singleton("*");
+	}
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+		TypeMirror serializable = processingEnv.getElementUtils().getTypeElement(DeXSerializable.class.getCanonicalName()).asType();
+		for (TypeElement type : types(round.getRootElements())) {
+			if (type.getKind() != ElementKind.CLASS || type.getModifiers().contains(Modifier.ABSTRACT)) continue;
+			if (!processingEnv.getTypeUtils().isAssignable(type.asType(), serializable)) continue;
+			generate(type);
+		}
+		return false;
+	}
+
+	/** All classes, including nested ones */
+	private static List<TypeElement> types(Iterable<? extends Element> elements) {
+		List<TypeElement> types = new ArrayList<>();
+		for (TypeElement type : ElementFilter.typesIn(elements)) {
+			types.add(type);
+			types.addAll(types(type.getEnclosedElements()));
+		}
+		return types;
+	}
+
+	/** Has to match the name {@link Serialization} looks for */
+	static String generatedName(String binaryName) {
+		return binaryName.replace('$', '_') + "_DeXSerializer";
+	}
+
+	private void generate(TypeElement type) {
+		PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+		String binary = processingEnv.getElementUtils().getBinaryName(type).toString();
+		String simple = generatedName(pkg.isUnnamed() ? binary : binary.substring(pkg.getQualifiedName().length() + 1));
+		String className = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+		String reason = null;
+		for (Element e = type; e instanceof TypeElement; e = e.getEnclosingElement()) {
+			if (e.getModifiers().contains(Modifier.PRIVATE)) reason = "it isn't visible";
+		}
+		if (type.getEnclosingElement() instanceof TypeElement && !type.getModifiers().contains(Modifier.STATIC)) reason = "it is an inner class";
+
+		// Wrong signatures are left to the reflective serializer, it reports them
+		ExecutableElement serializer = null, deserializer = null;
+		for (ExecutableElement method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+			if (method.getAnnotation(DeXSerializer.class) != null) {
+				serializer = method;
+				if (!signature(method, false, DeXTable.class, Serialization.class)) reason = "its serializer has the wrong signature";
+				else if (!visible(method, pkg)) reason = "its serializer is private";
+			}
+			if (method.getAnnotation(DeXDeserializer.class) != null) {
+				deserializer = method;
+				if (!signature(method, true, null, DeXTable.class, Serialization.class)) reason = "its deserializer has the wrong signature";
+				else if (!processingEnv.getTypeUtils().isAssignable(processingEnv.getTypeUtils().erasure(method.getReturnType()),
+					processingEnv.getTypeUtils().erasure(type.asType()))) reason = "its deserializer doesn't return " + className;
+				else if (!visible(method, pkg)) reason = "its deserializer is private";
+			}
+		}
+
+		List<VariableElement> fields = new ArrayList<>();
+		if (serializer == null || deserializer == null) {
+			fields = fields(type);
+			Set<String> names = new HashSet<>();
+			for (VariableElement field : fields) {
+				if (!visible(field, pkg)) reason = "field " + field.getSimpleName() + " isn't visible";
+				else if (!names.add(field.getSimpleName().toString())) reason = "field " + field.getSimpleName() + " is shadowed";
+				else if (deserializer == null && field.getModifiers().contains(Modifier.FINAL)) reason = "field " + field.getSimpleName() + " is final";
+			}
+		}
+		if (deserializer == null) {
+			boolean constructor = false;
+			for (ExecutableElement ctr : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+				if (ctr.getParameters().isEmpty() && visible(ctr, pkg)) constructor = true;
+			}
+			if (!constructor) reason = "it has no visible empty constructor";
+		}
+
+		if (reason != null) {
+			processingEnv.getMessager().printMessage(Kind.NOTE, "No serializer generated for " + className + ", " + reason, type);
+			return;
+		}
+
+		StringBuilder src = new StringBuilder();
+		if (!pkg.isUnnamed()) src.append("package ").append(pkg.getQualifiedName()).append(";\n\n");
+		src.append("/** Generated by ").append(SerializerProcessor.class.getName()).append(" */\n");
+		src.append("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })\n");
+		src.append("public final class ").append(simple).append(" implements ")
+			.append(DeXSerializable.Serializer.class.getCanonicalName()).append('<').append(className).append("> {\n\n");
+
+		src.append("\t@Override\n");
+		src.append("\tpublic ").append(DeXTable.class.getName()).append(" serialize(").append(className)
+			.append(" obj, ").append(Serialization.class.getName()).append(" sel) {\n");
+		if (serializer != null) {
+			call(src, "obj." + serializer.getSimpleName() + "(sel)", serializer, "serialize");
+		} else {
+			src.append("\t\t").append(DeXTable.class.getName()).append(".Builder builder = ").append(DeXTable.class.getName())
+				.append(".builder(sel.tagFor(").append(className).append(".class), ").append(fields.size()).append(");\n");
+			for (VariableElement field : fields) {
+				String name = field.getSimpleName().toString();
+				TypeKind kind = field.asType().getKind();
+				// Numbers go straight to the table
+				if (kind == TypeKind.DOUBLE || kind == TypeKind.FLOAT)
+					src.append("\t\tbuilder.putDouble(\"").append(name).append("\", obj.").append(name);
+				else if (kind.isPrimitive() && kind != TypeKind.BOOLEAN && kind != TypeKind.CHAR)
+					src.append("\t\tbuilder.putLong(\"").append(name).append("\", obj.").append(name);
+				else src.append("\t\tbuilder.put(\"").append(name).append("\", ")
+					.append(DeX.class.getName()).append(".decompose(obj.").append(name).append(", sel)");
+				src.append(");\n");
+			}
+			src.append("\t\treturn builder.create();\n");
+		}
+		src.append("\t}\n\n");
+
+		src.append("\t@Override\n");
+		src.append("\tpublic ").append(className).append(" deserialize(").append(DeXTable.class.getName())
+			.append(" table, ").append(Serialization.class.getName()).append(" sel) {\n");
+		if (deserializer != null) {
+			call(src, className + "." + deserializer.getSimpleName() + "(table, sel)", deserializer, "deserialize");
+		} else {
+			src.append("\t\t").append(className).append(" obj = new ").append(className).append("();\n");
+			src.append("\t\tObject value;\n");
+			for (VariableElement field : fields) {
+				String name = field.getSimpleName().toString();
+				TypeMirror fieldType = processingEnv.getTypeUtils().erasure(field.asType());
+				src.append("\t\tvalue = table.get(\"").append(name).append("\");\n");
+				if (fieldType.getKind().isPrimitive()) {
+					String boxed = processingEnv.getTypeUtils().boxedClass((PrimitiveType) fieldType).getQualifiedName().toString();
+					// Missing values keep the default, just like the reflective serializer
+					if (fieldType.getKind() != TypeKind.BOOLEAN && fieldType.getKind() != TypeKind.CHAR) {
+						src.append("\t\tif (value instanceof Number) obj.").append(name).append(" = ((Number) value).")
+							.append(fieldType).append("Value();\n");
+						src.append("\t\telse ");
+					} else src.append("\t\t");
+					src.append("if (value != null) obj.").append(name).append(" = (").append(boxed).append(") ")
+						.append(DeX.class.getName()).append(".compose(").append(fieldType).append(".class, value, sel);\n");
+				} else {
+					src.append("\t\tobj.").append(name).append(" = (").append(fieldType).append(") ")
+						.append(DeX.class.getName()).append(".compose(").append(fieldType).append(".class, value, sel);\n");
+				}
+			}
+			src.append("\t\treturn obj;\n");
+		}
+		src.append("\t}\n");
+		src.append("}\n");
+
+		String qualified = pkg.isUnnamed() ? simple : pkg.getQualifiedName() + "." + simple;
+		try (Writer out = processingEnv.getFiler().createSourceFile(qualified, type).openWriter()) {
+			out.write(src.toString());
+		} catch (IOException e) {
+			processingEnv.getMessager().printMessage(Kind.ERROR, "Couldn't write serializer for " + className + ": " + e, type);
+		}
+	}
+
+	/** Returns the result of the call, checked exceptions are wrapped just like the reflective serializer does */
+	private void call(StringBuilder src, String call, ExecutableElement method, String action) {
+		boolean checked = false;
+		for (TypeMirror thrown : method.getThrownTypes()) {
+			if (!isUnchecked(thrown)) checked = true;
+		}
+		if (!checked) {
+			src.append("\t\treturn ").append(call).append(";\n");
+			return;
+		}
+		src.append("\t\ttry {\n");
+		src.append("\t\t\treturn ").append(call).append(";\n");
+		src.append("\t\t} catch (RuntimeException e) {\n");
+		src.append("\t\t\tthrow e;\n");
+		src.append("\t\t} catch (Exception e) {\n");
+		src.append("\t\t\tthrow new RuntimeException(\"Error while trying to ").append(action).append(" Object: \", e);\n");
+		src.append("\t\t}\n");
+	}
+
+	private boolean isUnchecked(TypeMirror thrown) {
+		for (Class<?> unchecked : new Class<?>[] { RuntimeException.class, Error.class }) {
+			TypeMirror type = processingEnv.getElementUtils().getTypeElement(unchecked.getName()).asType();
+			if (processingEnv.getTypeUtils().isAssignable(thrown, type)) return true;
+		}
+		return false;
+	}
+
+	/** Fields marked with {@link Serialize}, of the class and its super classes */
+	private List<VariableElement> fields(TypeElement type) {
+		List<VariableElement> fields = new ArrayList<>();
+		while (type != null) {
+			for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+				Set<Modifier> modifiers = field.getModifiers();
+				if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.TRANSIENT)) continue;
+				if (field.getAnnotation(Serialize.class) != null) fields.add(field);
+			}
+			TypeMirror parent = type.getSuperclass();
+			type = parent instanceof DeclaredType ? (TypeElement) ((DeclaredType) parent).asElement() : null;
+		}
+		return fields;
+	}
+
+	private static boolean signature(ExecutableElement method, boolean isStatic, Class<?> returnType, Class<?>... parameters) {
+		if (method.getModifiers().contains(Modifier.STATIC) != isStatic) return false;
+		if (returnType != null && !method.getReturnType().toString().equals(returnType.getName())) return false;
+		if (method.getParameters().size() != parameters.length) return false;
+		for (int i = 0; i < parameters.length; i++) {
+			if (!method.getParameters().get(i).asType().toString().equals(parameters[i].getName())) return false;
+		}
+		return true;
+	}
+
+	/** True if the generated class in the given package can use the member */
+	private boolean visible(Element member, PackageElement pkg) {
+		Set<Modifier> modifiers = member.getModifiers();
+		if (modifiers.contains(Modifier.PUBLIC)) return true;
+		if (modifiers.contains(Modifier.PRIVATE)) return false;
+		return processingEnv.getElementUtils().getPackageOf(member).equals(pkg);
+	}
+}
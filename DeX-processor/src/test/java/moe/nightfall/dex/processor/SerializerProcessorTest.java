@@ -0,0 +1,143 @@
+package moe.nightfall.dex.processor;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.tools.JavaCompiler;
+import javax.tools.JavaCompiler.CompilationTask;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import moe.nightfall.dex.DeXParser;
+import moe.nightfall.dex.DeXTable;
+import moe.nightfall.dex.serialize.DeXSerializable.Serializer;
+import moe.nightfall.dex.serialize.Serialization;
+
+public class SerializerProcessorTest {
+
+	private static final String SOURCE =
+		"package test;\n" +
+		"import moe.nightfall.dex.serialize.DeXSerializable;\n" +
+		"public class Entity implements DeXSerializable {\n" +
+		"	@Serialize int x = 1;\n" +
+		"	@Serialize double y;\n" +
+		"	@Serialize boolean alive = true;\n" +
+		"	@Serialize String name;\n" +
+		"	@Serialize java.util.List<Object> items;\n" +
+		"	int ignored;\n" +
+		"	public static class Hidden implements DeXSerializable {\n" +
+		"		@Serialize private int secret;\n" +
+		"	}\n" +
+		"	public static class Loose implements DeXSerializable {\n" +
+		"		@DeXDeserializer static Object read(moe.nightfall.dex.DeXTable table, moe.nightfall.dex.serialize.Serialization sel) {\n" +
+		"			return new Loose();\n" +
+		"		}\n" +
+		"	}\n" +
+		"	public static class Checked implements DeXSerializable {\n" +
+		"		int x;\n" +
+		"		@DeXSerializer moe.nightfall.dex.DeXTable write(moe.nightfall.dex.serialize.Serialization sel) throws java.io.IOException {\n" +
+		"			if (x < 0) throw new java.io.IOException(\"negative\");\n" +
+		"			return moe.nightfall.dex.DeXTable.create(x);\n" +
+		"		}\n" +
+		"		@DeXDeserializer static Checked read(moe.nightfall.dex.DeXTable table, moe.nightfall.dex.serialize.Serialization sel) throws Exception {\n" +
+		"			Checked checked = new Checked();\n" +
+		"			checked.x = table.getInt(0);\n" +
+		"			return checked;\n" +
+		"		}\n" +
+		"	}\n" +
+		"}\n";
+
+	private ClassLoader loader;
+	private String notes;
+
+	@Before
+	public void setup() throws Exception {
+		Path dir = Files.createTempDirectory("dex-processor");
+		Path source = dir.resolve("test/Entity.java");
+		Files.createDirectories(source.getParent());
+		Files.write(source, SOURCE.getBytes(StandardCharsets.UTF_8));
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		StandardJavaFileManager files = compiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+		StringWriter out = new StringWriter();
+		CompilationTask task = compiler.getTask(out, files, null,
+			Arrays.asList("-d", dir.toString(), "-classpath", System.getProperty("java.class.path")), null,
+			files.getJavaFileObjects(source.toFile()));
+		task.setProcessors(Collections.singleton(new SerializerProcessor()));
+		assertThat(task.call()).as(out.toString()).isTrue();
+		notes = out.toString();
+
+		loader = new URLClassLoader(new URL[] { dir.toUri().toURL() }, getClass().getClassLoader());
+	}
+
+	private static Field field(Class<?> clazz, String name) throws NoSuchFieldException {
+		Field field = clazz.getDeclaredField(name);
+		field.setAccessible(true);
+		return field;
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void testGenerated() throws Exception {
+		Class<?> entity = loader.loadClass("test.Entity");
+		Serialization sel = new Serialization();
+		Serializer ser = sel.forClass(entity);
+		assertThat(ser.getClass().getName()).isEqualTo("test.Entity_DeXSerializer");
+
+		DeXParser parser = DeXParser.create();
+		DeXTable table = parser.parse("x: 5, y: 0.5, alive: false, name: bob, items { a, 2 }, ignored: 3");
+		Object obj = ser.deserialize(table, sel);
+		assertThat(field(entity, "x").getInt(obj)).isEqualTo(5);
+		assertThat(field(entity, "y").getDouble(obj)).isEqualTo(0.5);
+		assertThat(field(entity, "alive").getBoolean(obj)).isFalse();
+		assertThat(field(entity, "name").get(obj)).isEqualTo("bob");
+		assertThat(field(entity, "ignored").getInt(obj)).isEqualTo(0);
+
+		DeXTable back = ser.serialize(obj, sel);
+		assertThat(back.keySet()).containsOnly("x", "y", "alive", "name", "items");
+		assertThat(back.getDouble("x")).isEqualTo(5);
+
+		// Private fields need the reflective serializer
+		Class<?> hidden = loader.loadClass("test.Entity$Hidden");
+		assertThat(sel.forClass(hidden).getClass().getName()).isEqualTo("moe.nightfall.dex.serialize.DeXSerializerImpl");
+		assertThat(notes).contains("test.Entity.Hidden").contains("secret");
+		assertThat(new File(loader.getResource("test/Entity.class").toURI()).getParentFile().list())
+			.contains("Entity_DeXSerializer.class").doesNotContain("Entity_Hidden_DeXSerializer.class");
+	}
+
+	@Test
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void testSignatures() throws Exception {
+		// Deserializers have to return the class itself
+		assertThat(notes).contains("test.Entity.Loose").contains("doesn't return");
+		assertThat(new File(loader.getResource("test/Entity.class").toURI()).getParentFile().list())
+			.doesNotContain("Entity_Loose_DeXSerializer.class");
+
+		// Checked exceptions get wrapped
+		Class<?> checked = loader.loadClass("test.Entity$Checked");
+		Serialization sel = new Serialization();
+		Serializer ser = sel.forClass(checked);
+		assertThat(ser.getClass().getName()).isEqualTo("test.Entity_Checked_DeXSerializer");
+		Object obj = ser.deserialize(DeXTable.create(3), sel);
+		assertThat(field(checked, "x").getInt(obj)).isEqualTo(3);
+		assertThat(ser.serialize(obj, sel).getInt(0)).isEqualTo(3);
+
+		field(checked, "x").setInt(obj, -1);
+		assertThatThrownBy(() -> ser.serialize(obj, sel)).isInstanceOf(RuntimeException.class).hasCauseInstanceOf(IOException.class);
+	}
+}
@@ -0,0 +1,63 @@
+package moe.nightfall.dex;
+
+import java.util.Arrays;
+
+/**
+ * Structural pre-scan for parsing a document in parallel. It only follows quotes,
+ * escapes and braces to find the separators between the entries of the document,
+ * everything else is left to the {@link DeXReader} of every chunk.
+ *
+ * @author Vic
+ */
+final class Chunks {
+
+	private Chunks() {}
+
+	/**
+	 * Splits the document into chunks of whole entries, each at least the given size.
+	 * Returns the end of every chunk, a chunk keeps the separator of its last entry.
+	 * Null if there would only be one chunk or the braces don't match up.
+	 */
+	static int[] split(String text, int size, boolean parseJSON) {
+		int[] ends = new int[16];
+		int count = 0;
+		int last = 0;
+
+		int depth = 0;
+		boolean quoted = false;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (quoted) {
+				if (c == '\\') i++;
+				else if (c == '"') quoted = false;
+				continue;
+			}
+			switch (c) {
+			case '"': quoted = true; break;
+			case '\\':
+				// Line continuation, \r\n counts as one char
+				if (++i + 1 < length && text.charAt(i) == '\r' && text.charAt(i + 1) == '\n') i++;
+				break;
+			case '{': depth++; break;
+			case '}': if (--depth < 0) return null; break;
+			case '[': if (parseJSON) depth++; break;
+			case ']': if (parseJSON && --depth < 0) return null; break;
+			case '\r':
+			case '\n':
+			case ',':
+				// \r\n is a single separator
+				if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n') i++;
+				if (depth == 0 && i + 1 - last >= size) {
+					if (count == ends.length) ends = Arrays.copyOf(ends, count * 2);
+					ends[count++] = last = i + 1;
+				}
+			}
+		}
+		if (last < length) {
+			if (count == ends.length) ends = Arrays.copyOf(ends, count + 1);
+			ends[count++] = length;
+		}
+		return count > 1 ? Arrays.copyOf(ends, count) : null;
+	}
+}
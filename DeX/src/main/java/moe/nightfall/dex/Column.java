@@ -0,0 +1,180 @@
+package moe.nightfall.dex;
+
+/**
+ * Storage for the values of a {@link DeXTable}, by index. Numbers can be kept
+ * as primitives, they only get boxed if they are accessed as {@link Object}.
+ *
+ * @author Vic
+ */
+abstract class Column {
+
+	// Kinds of values
+	static final byte OBJECT = 0;
+	static final byte DOUBLE = 1;
+	static final byte LONG = 2;
+
+	abstract int size();
+
+	/** The value at the given index, primitives get boxed */
+	abstract Object get(int index);
+
+	abstract byte kind(int index);
+
+	/** Only valid for {@link #DOUBLE} and {@link #LONG} */
+	abstract double getDouble(int index);
+
+	/** Only valid for {@link #LONG} */
+	abstract long getLong(int index);
+
+	/** Values without any numbers */
+	static final class Objects extends Column {
+
+		private final Object[] values;
+
+		Objects(Object[] values) {
+			this.values = values;
+		}
+
+		@Override
+		int size() {
+			return values.length;
+		}
+
+		@Override
+		Object get(int index) {
+			return LazyValue.resolve(values[index]);
+		}
+
+		@Override
+		byte kind(int index) {
+			return OBJECT;
+		}
+
+		@Override
+		double getDouble(int index) {
+			throw new IllegalStateException();
+		}
+
+		@Override
+		long getLong(int index) {
+			throw new IllegalStateException();
+		}
+	}
+
+	/**
+	 * Any values, numbers are stored in a primitive column next to
+	 * the objects. Doubles are stored as their raw bits.
+	 */
+	static final class Mixed extends Column {
+
+		private final Object[] values;
+		private final long[] numbers;
+		private final byte[] kinds;
+
+		Mixed(Object[] values, long[] numbers, byte[] kinds) {
+			this.values = values;
+			this.numbers = numbers;
+			this.kinds = kinds;
+		}
+
+		@Override
+		int size() {
+			return kinds.length;
+		}
+
+		@Override
+		Object get(int index) {
+			switch (kinds[index]) {
+			case DOUBLE: return Double.longBitsToDouble(numbers[index]);
+			case LONG: return numbers[index];
+			default: return LazyValue.resolve(values[index]);
+			}
+		}
+
+		@Override
+		byte kind(int index) {
+			return kinds[index];
+		}
+
+		@Override
+		double getDouble(int index) {
+			if (kinds[index] == LONG) return numbers[index];
+			return Double.longBitsToDouble(numbers[index]);
+		}
+
+		@Override
+		long getLong(int index) {
+			return numbers[index];
+		}
+	}
+
+	/** Values that are all doubles */
+	static final class Doubles extends Column {
+
+		final double[] values;
+
+		Doubles(double[] values) {
+			this.values = values;
+		}
+
+		@Override
+		int size() {
+			return values.length;
+		}
+
+		@Override
+		Object get(int index) {
+			return values[index];
+		}
+
+		@Override
+		byte kind(int index) {
+			return DOUBLE;
+		}
+
+		@Override
+		double getDouble(int index) {
+			return values[index];
+		}
+
+		@Override
+		long getLong(int index) {
+			throw new IllegalStateException();
+		}
+	}
+
+	/** Values that are all integers, only used with typed numbers */
+	static final class Longs extends Column {
+
+		final long[] values;
+
+		Longs(long[] values) {
+			this.values = values;
+		}
+
+		@Override
+		int size() {
+			return values.length;
+		}
+
+		@Override
+		Object get(int index) {
+			return values[index];
+		}
+
+		@Override
+		byte kind(int index) {
+			return LONG;
+		}
+
+		@Override
+		double getDouble(int index) {
+			return values[index];
+		}
+
+		@Override
+		long getLong(int index) {
+			return values[index];
+		}
+	}
+}
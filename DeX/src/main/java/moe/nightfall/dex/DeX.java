@@ -1,14 +1,11 @@
 package moe.nightfall.dex;
 
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.function.Function;
@@ -28,7 +25,7 @@ public final class DeX {
 		if (CharSequence.class.isAssignableFrom(target)) {
 			// Try to coerce strings
 			if (o instanceof Number) {
-				return (T) DOUBLE_FORMAT.format(((Number)o).doubleValue());
+				return (T) formatNumber((Number) o);
 			} else if (o instanceof Boolean) {
 				return (T) o.toString();
 			}
@@ -63,6 +60,38 @@ public final class DeX {
 		return sel.forClass((Class)in.getClass()).serialize(in, sel);
 	}
 	
+	/**
+	 * Same as {@link #decompose(Object, Serialization)} but writes the result
+	 * as the next value of the writer. Objects and collections are written as they go,
+	 * without creating a {@link DeXTable} first.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void decompose(Object in, DeXWriter out, Serialization sel) {
+		if (in == null) return;
+		// The table would coerce numbers to double
+		if (isPrimitive(in)) {
+			if (in instanceof Number) out.value(((Number) in).doubleValue());
+			else out.value(in);
+		}
+		else if (in instanceof Object[]) {
+			out.startTable("", true);
+			for (Object o : (Object[]) in) decomposeElement(o, out, sel);
+			out.endTable();
+		} else if (in instanceof Iterable) {
+			out.startTable("", true);
+			for (Object o : (Iterable<?>) in) decomposeElement(o, out, sel);
+			out.endTable();
+		} else if (in instanceof Map || in instanceof DeXArray) {
+			// Keys might collide, so these still need a table
+			out.write((DeXTable) decompose(in, sel));
+		} else sel.forClass((Class) in.getClass()).write(in, out, sel);
+	}
+	
+	private static void decomposeElement(Object in, DeXWriter out, Serialization sel) {
+		if (in == null) throw new IllegalArgumentException("DeXTable doesn't allow null values!");
+		decompose(in, out, sel);
+	}
+	
 	/** 
 	 * This ensures that the given objects is wrapped in a {@link DeXTable}
 	 * Don't call this method with anything other than primitives and {@link DeXTable}! 
@@ -218,171 +247,54 @@ public final class DeX {
 	}
 	
 	public static String prettyPrint(DeXTable table) {
-		StringBuilder builder = new StringBuilder();
-		prettyPrint(table, builder, 2);
-		return builder.toString();
-	}
-	
-	private static void prettyPrint(DeXTable table, StringBuilder sb, int level) {
-		boolean array = table.isArray();
-		if (table.hasTag()) {
-			print(table.tag(), sb, true);
-			sb.append(" { ");
-		} else sb.append("{ ");
-		if (!array) sb.append('\n');
-		
-		boolean first = true;
-		for (Entry<Object, Object> entry : table.entrySet()) {
-			if (!array && level > 0) for (int j = 0; j < level; j++) sb.append(" ");
-			if (!first && array) {
-				sb.append(", ");
-			} else first = false;
-			
-			if (!array) {
-				if (entry.getKey() instanceof DeXTable) {
-					prettyPrint((DeXTable) entry.getKey(), sb, level + 2);
-				} else print(entry.getKey(), sb, true);
-				sb.append(" : ");
-			}
-			if (entry.getValue() instanceof DeXTable) {
-				prettyPrint((DeXTable) entry.getValue(), sb, level + 2);
-			} else print(entry.getValue(), sb, true);
-			
-			if (!array) sb.append('\n');
-		}
-		if (!array) {
-			if (level > 0) for (int j = 0; j < level - 2; j++) sb.append(" "); 
-		} else sb.append(' ');
-		
-		sb.append('}');
+		return print(table, true);
 	}
 	
 	public static String print(DeXTable table, boolean pretty) {
-		if (pretty) return prettyPrint(table);
-		else return print(table);
+		StringBuilder builder = new StringBuilder();
+		write(table, builder, pretty);
+		return builder.toString();
 	}
 	
 	public static String print(DeXTable table) {
-		StringBuilder builder = new StringBuilder();
-		print(table, builder);
-		return builder.toString();
+		return print(table, false);
 	}
 	
 	public static void print(DeXTable table, StringBuilder sb) {
-		boolean array = table.isArray();
-		if (table.hasTag()) {
-			print(table.tag(), sb, false);
-		}
-		sb.append("{");
-		
-		boolean first = true;
-		for (Entry<Object, Object> entry : table.entrySet()) {
-			if (!first) {
-				sb.append(",");
-			} else first = false;
-			
-			if (!array) {
-				if (entry.getKey() instanceof DeXTable) {
-					print((DeXTable) entry.getKey(), sb);
-				} else print(entry.getKey(), sb, false);
-				sb.append(":");
-			}
-			if (entry.getValue() instanceof DeXTable) {
-				print((DeXTable) entry.getValue(), sb);
-			} else print(entry.getValue(), sb, false);
-		}
-		sb.append('}');
+		write(table, sb, false);
 	}
 	
-	private static final DecimalFormat DOUBLE_FORMAT = new DecimalFormat("0.#", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+	/** 
+	 * Prints the table to the given target, the text is passed on in chunks.
+	 * The target doesn't get closed afterwards.
+	 * 
+	 * @see DeXWriter
+	 */
+	public static void write(DeXTable table, Appendable out, boolean pretty) {
+		new DeXWriter(out, pretty).write(table).flush();
+	}
 	
-	private static void print(Object o, StringBuilder sb, boolean pretty) {
-		if (o instanceof String) {
-			String s = (String) o;
-			sb.ensureCapacity(sb.length() + s.length());
-			int start = sb.length();
-			
-			if (!pretty) sb.append('"');
-			
-			boolean isValid = pretty;
-			for (int i = 0; i < s.length(); i++) {
-				char c = s.charAt(i);
-				String s2 = escape(c);
-				if (s2 != null) {
-					sb.append(s2);
-					isValid = false;
-					continue;
-				} else if (isValid) {
-					switch (c) {
-					case '{': isValid = false; break;
-					case '}': isValid = false; break;
-					case ':': isValid = false; break;
-					case ',': isValid = false; break;
-					}
-				}
-				sb.append(c);
-			}
-			
-			if (!pretty) sb.append('"');
-			else if (!isValid) {
-				// Since we haven't inserted that one before we have to do this
-				sb.insert(start, '"');
-				sb.append('"');
-			}
-		} else {
-			if (o instanceof Number) {
-				sb.append(DOUBLE_FORMAT.format(((Number)o).doubleValue()));
-			} else sb.append(o.toString());
-		}
+	/** Integers are formatted as long so that they don't lose precision */
+	static String formatNumber(Number n) {
+		char[] chars = new char[NumberFormatter.MAX_LENGTH];
+		if (isIntegral(n)) return new String(chars, 0, NumberFormatter.format(n.longValue(), chars, 0));
+		return formatNumber(n.doubleValue());
 	}
-			
-	private static String escape(char c) {
-		switch (c) {
-	      case '\"': return "\\\"";
-	      case '\t': return "\\t";
-	      case '\n': return "\\n";
-	      case '\r': return "\\r";
-	      case '\f': return "\\f";
-	      case '\b': return "\\b";
-	      case '\\': return "\\\\";
-		}
-		return null;
+	
+	/** The shortest text that parses back to the same double, see {@link NumberFormatter} */
+	static String formatNumber(double d) {
+		char[] chars = new char[NumberFormatter.MAX_LENGTH];
+		return new String(chars, 0, NumberFormatter.format(d, chars, 0));
 	}
 	
+	static boolean isIntegral(Number n) {
+		return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+	}
+	
+	/** Parses a DeX number, returns null if the given string isn't one */
 	public static Double parseDeXNumber(String s) {
-		int i = 0;
-		char[] chars = s.toCharArray();
-		
-		boolean hasSign = false;
-		
-		if (chars[i] == '-') {
-			hasSign = true;
-			i++;
-		} else if (chars[i] == '+') i++; //+ Are generally ignored, why'd you need them anyways?
-		
-		// Check radix
-		int radix = 10;
-		if (chars[i] == '0') {
-			// This is a 0
-			if (i + 1 == chars.length) return 0D;
-			
-			switch (chars[i + 1]) {
-			case 'x': radix = 16; i += 2; break;
-			case 'o': radix = 8; i += 2; break;
-			case 'b': radix = 2; i += 2;
-			}
-		}
-		
-		String number = (hasSign ? "-" : "") + s.substring(i);
-		try {
-			if (radix == 10) {
-				return Double.parseDouble(number);
-			} else {
-				return Long.valueOf(number, radix).doubleValue();
-			}
-		} catch (Exception e) {
-			// Invalid number
-			return null;
-		}
+		NumberParser parser = new NumberParser();
+		if (parser.parse(s.toCharArray(), 0, s.length())) return parser.value;
+		return null;
 	}
 }
@@ -1,12 +1,13 @@
 package moe.nightfall.dex;
 
 import java.util.AbstractList;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
 
 /**
- * This is an immutable array view of a {@link DeXTable}.
+ * This is an immutable array view of a {@link DeXTable}, it doesn't copy
+ * the values of the table and is just as safe to share between threads.
  * Most methods of {@link DeX} work with this, however, its recommended
  * to only use this helper class to iterate on a {@link DeXTable} or access
  * its values by index.
@@ -14,17 +15,20 @@ import java.util.List;
  * You can convert the array to a {@link DeXTable} by calling {@link #toDeXTable()},
  * without overhead.
  * 
+ * Arrays of numbers are stored as primitives, {@link #getDouble(int)},
+ * {@link #toDoubleArray()} and {@link #doubleStream()} access them without boxing.
+ * 
  * @author Vic
  */
 public final class DeXArray extends AbstractList<Object> implements DeXIterable<Integer> {
 	
-	private List<Object> values;
+	private final Column values;
 	private final String tag;
 	
 	final DeXTable table;
 
-	DeXArray(DeXTable parent, Collection<?> values) {
-		this.values = new ArrayList<>(values);
+	DeXArray(DeXTable parent, Column values) {
+		this.values = values;
 		this.tag = parent.tag();
 		this.table = parent;
 	}
@@ -46,6 +50,31 @@ public final class DeXArray extends AbstractList<Object> implements DeXIterable<
 		return values.get(index);
 	}
 
+	public double getDouble(int index) {
+		return table.doubleAt(index);
+	}
+	
+	public long getLong(int index) {
+		return table.longAt(index);
+	}
+
+	/** 
+	 * Copies the values into a new array, throws an {@link ArithmeticException}
+	 * if any of them isn't a number.
+	 */
+	public double[] toDoubleArray() {
+		if (values instanceof Column.Doubles) return ((Column.Doubles) values).values.clone();
+		double[] array = new double[size()];
+		for (int i = 0; i < array.length; i++) array[i] = table.doubleAt(i);
+		return array;
+	}
+	
+	/** Same as {@link #toDoubleArray()} but without a copy */
+	public DoubleStream doubleStream() {
+		if (values instanceof Column.Doubles) return Arrays.stream(((Column.Doubles) values).values);
+		return IntStream.range(0, size()).mapToDouble(table::doubleAt);
+	}
+
 	@Override
 	public int size() {
 		return values.size();
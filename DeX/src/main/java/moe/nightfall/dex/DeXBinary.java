@@ -0,0 +1,321 @@
+package moe.nightfall.dex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import moe.nightfall.dex.DeXParser.ParseException;
+import moe.nightfall.dex.serialize.Serialization;
+
+/**
+ * Compact binary form of DeX, it holds the same data as the text. Reading it back with
+ * {@link DeXParser#parseBinary(byte[])} gives the same table that was written, so a document
+ * comes out just like the text parser would have read it.
+ *
+ * <p>The data starts with the bytes {@code DeX} and the version, followed by the document
+ * as a table. Every value starts with its type:</p>
+ * <ul>
+ * <li>{@code STRING}: byte length as varint, UTF-8</li>
+ * <li>{@code SYMBOL}: same as a string, which is added to the string table</li>
+ * <li>{@code REF}: index into the string table as varint, the empty string is always 0</li>
+ * <li>{@code DOUBLE}: IEEE 754, big endian</li>
+ * <li>{@code LONG}: zigzag varint, for integers and integral doubles</li>
+ * <li>{@code TRUE}, {@code FALSE}</li>
+ * <li>{@code TABLE}: tag as string value, {@code size << 1 | array} as varint, then the entries.
+ * Arrays only store the values, other tables the key followed by the value.</li>
+ * </ul>
+ * Keys, tags and short strings are put in the string table, they are only written once.
+ *
+ * @author Vic
+ */
+public final class DeXBinary {
+
+	static final byte[] MAGIC = { 'D', 'e', 'X', 1 };
+
+	static final byte STRING = 0;
+	static final byte SYMBOL = 1;
+	static final byte REF = 2;
+	static final byte DOUBLE = 3;
+	static final byte LONG = 4;
+	static final byte TRUE = 5;
+	static final byte FALSE = 6;
+	static final byte TABLE = 7;
+
+	/** Longer strings aren't worth keeping in the string table */
+	static final int SYMBOL_LENGTH = 64;
+
+	private final OutputStream out;
+	private byte[] buffer = new byte[8192];
+	private int pos;
+
+	private final Map<String, Integer> symbols = new HashMap<>();
+	// Decomposes values that aren't DeX, null prints them as text
+	private final Serialization sel;
+
+	private DeXBinary(OutputStream out, Serialization sel) {
+		this.out = out;
+		this.sel = sel;
+		symbols.put("", 0);
+	}
+
+	public static byte[] toBytes(DeXTable table) {
+		return toBytes(table, null);
+	}
+
+	/** Objects in the table are decomposed with the given serialization */
+	static byte[] toBytes(DeXTable table, Serialization sel) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(table, out, sel);
+		return out.toByteArray();
+	}
+
+	/** Writes the table to the stream, which doesn't get closed afterwards */
+	public static void write(DeXTable table, OutputStream out) {
+		write(table, out, null);
+	}
+
+	private static void write(DeXTable table, OutputStream out, Serialization sel) {
+		DeXBinary writer = new DeXBinary(out, sel);
+		writer.bytes(MAGIC);
+		writer.table(table);
+		writer.drain();
+	}
+
+	private void table(DeXTable table) {
+		ensure(1);
+		buffer[pos++] = TABLE;
+		string(table.tag(), true);
+		boolean array = table.isArray();
+		varint((long) table.size() << 1 | (array ? 1 : 0));
+		for (int i = 0; i < table.size(); i++) {
+			if (!array) value(table.key(i));
+			switch (table.kindAt(i)) {
+			case Column.DOUBLE: number(table.doubleAt(i)); break;
+			case Column.LONG: number(table.longAt(i)); break;
+			default: value(table.valueAt(i));
+			}
+		}
+	}
+
+	private void value(Object value) {
+		if (value instanceof DeXTable) table((DeXTable) value);
+		else if (value instanceof DeXArray) table(((DeXArray) value).toDeXTable());
+		else if (value instanceof Double || value instanceof Float) number(((Number) value).doubleValue());
+		else if (value instanceof Number) number(((Number) value).longValue());
+		else if (value instanceof Boolean) {
+			ensure(1);
+			buffer[pos++] = (Boolean) value ? TRUE : FALSE;
+		}
+		else if (sel != null && !DeX.isPrimitive(value)) value(DeX.decompose(value, sel));
+		// Anything else is printed as text
+		else string(String.valueOf(value), false);
+	}
+
+	private void number(double value) {
+		// Integral doubles are printed without fraction, the text parser reads them as integers
+		long l = (long) value;
+		if (l == value && l != Long.MAX_VALUE && l != Long.MIN_VALUE && (l != 0 || Double.doubleToRawLongBits(value) == 0)) {
+			number(l);
+			return;
+		}
+		ensure(9);
+		buffer[pos++] = DOUBLE;
+		long bits = Double.doubleToRawLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8) buffer[pos++] = (byte) (bits >>> shift);
+	}
+
+	private void number(long value) {
+		ensure(1);
+		buffer[pos++] = LONG;
+		varint(value << 1 ^ value >> 63);
+	}
+
+	private void string(String s, boolean symbol) {
+		Integer ref = symbols.get(s);
+		if (ref != null) {
+			ensure(1);
+			buffer[pos++] = REF;
+			varint(ref);
+			return;
+		}
+		boolean keep = symbol || s.length() <= SYMBOL_LENGTH;
+		if (keep) symbols.put(s, symbols.size());
+
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		ensure(1);
+		buffer[pos++] = keep ? SYMBOL : STRING;
+		varint(bytes.length);
+		bytes(bytes);
+	}
+
+	private void varint(long value) {
+		ensure(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[pos++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		buffer[pos++] = (byte) value;
+	}
+
+	private void bytes(byte[] bytes) {
+		if (bytes.length > buffer.length - pos) {
+			drain();
+			if (bytes.length > buffer.length) {
+				write(bytes, bytes.length);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, buffer, pos, bytes.length);
+		pos += bytes.length;
+	}
+
+	private void ensure(int n) {
+		if (buffer.length - pos < n) drain();
+	}
+
+	private void drain() {
+		write(buffer, pos);
+		pos = 0;
+	}
+
+	private void write(byte[] bytes, int length) {
+		try {
+			out.write(bytes, 0, length);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Reads binary DeX, composing tables like {@link DeXParser} does */
+	static final class Reader {
+
+		private final byte[] data;
+		private int pos;
+
+		private final boolean typedNumbers;
+		private final int maxDepth;
+		private final Serialization sel;
+
+		private String[] symbols = new String[64];
+		private int symbolCount;
+
+		Reader(byte[] data, boolean typedNumbers, int maxDepth, Serialization sel) {
+			this.data = data;
+			this.typedNumbers = typedNumbers;
+			this.maxDepth = maxDepth;
+			this.sel = sel;
+			symbols[symbolCount++] = "";
+		}
+
+		static byte[] readAll(InputStream in) {
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[8192];
+				for (int read; (read = in.read(buffer)) != -1;) out.write(buffer, 0, read);
+				return out.toByteArray();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		DeXTable document() {
+			try {
+				for (byte b : MAGIC) {
+					if (data[pos++] != b) throw new ParseException(pos - 1, "Not binary DeX");
+				}
+				if (data[pos++] != TABLE) throw new ParseException(pos - 1, "Document has to be a table");
+				DeXTable document = table(1);
+				if (pos != data.length) throw new ParseException(pos, "Unexpected data after the document");
+				return document;
+			} catch (ArrayIndexOutOfBoundsException e) {
+				throw new ParseException(data.length, "Unexpected end of data");
+			}
+		}
+
+		/** The table after its type */
+		private DeXTable table(int depth) {
+			if (depth > maxDepth) throw new ParseException(pos - 1, "Tables are nested deeper than " + maxDepth + " levels");
+			String tag = string(data[pos++]);
+			long header = varint();
+			boolean array = (header & 1) != 0;
+			long size = header >>> 1;
+			if (size > data.length - pos) throw new ParseException(pos, "Invalid table size " + size);
+
+			DeXTable.Builder builder = DeXTable.builder(tag, (int) size).typedNumbers(typedNumbers);
+			for (int i = 0; i < size; i++) {
+				Object key = null;
+				if (!array) key = DeX.compose(value(data[pos++], depth), sel);
+
+				// Numbers skip the boxing
+				byte type = data[pos++];
+				switch (type) {
+				case DOUBLE: builder.putDouble(key, readDouble()); break;
+				case LONG: builder.putLong(key, readLong()); break;
+				default: builder.put(key, DeX.compose(value(type, depth), sel));
+				}
+			}
+			return builder.create();
+		}
+
+		private Object value(byte type, int depth) {
+			switch (type) {
+			case STRING:
+			case SYMBOL:
+			case REF: return string(type);
+			case DOUBLE: return readDouble();
+			case LONG: return readLong();
+			case TRUE: return true;
+			case FALSE: return false;
+			case TABLE: return table(depth + 1);
+			default: throw new ParseException(pos - 1, "Unknown type " + type);
+			}
+		}
+
+		private String string(byte type) {
+			if (type == REF) {
+				long ref = varint();
+				if (ref >= symbolCount) throw new ParseException(pos - 1, "Invalid string reference " + ref);
+				return symbols[(int) ref];
+			}
+			if (type != STRING && type != SYMBOL) throw new ParseException(pos - 1, "String expected");
+
+			long length = varint();
+			if (length > data.length - pos) throw new ParseException(pos, "Invalid string length " + length);
+			String s = new String(data, pos, (int) length, StandardCharsets.UTF_8);
+			pos += length;
+
+			if (type == SYMBOL) {
+				if (symbolCount == symbols.length) symbols = Arrays.copyOf(symbols, symbolCount * 2);
+				symbols[symbolCount++] = s;
+			}
+			return s;
+		}
+
+		private double readDouble() {
+			long bits = 0;
+			for (int i = 0; i < 8; i++) bits = bits << 8 | (data[pos++] & 0xFF);
+			return Double.longBitsToDouble(bits);
+		}
+
+		private long readLong() {
+			long zigzag = varint();
+			return zigzag >>> 1 ^ -(zigzag & 1);
+		}
+
+		private long varint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = data[pos++];
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0) return value;
+			}
+			throw new ParseException(pos - 1, "Invalid varint");
+		}
+	}
+}
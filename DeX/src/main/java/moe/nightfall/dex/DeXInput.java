@@ -0,0 +1,287 @@
+package moe.nightfall.dex;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered character input used by the {@link DeXParser}. The source is read
+ * through a fixed size buffer, so the document never has to be in memory as a whole.
+ *
+ * Only a bounded window of already consumed text is kept around in order to show
+ * some context if parsing fails. Line breaks of any flavor ({@code \r\n}, {@code \r})
+ * are reported as {@code \n}.
+ *
+ * Chars are classified with a lookup table, {@link #plain(boolean)} finds the next one that
+ * matters to the reader. The reader copies the run of plain text in front of it in one go with
+ * {@link #copy(char[], int, int)}, instead of going through {@link #read()} for every char.
+ *
+ * UTF-8 bytes, like a mapped file, are decoded right into the buffer without a {@link Reader}.
+ * ASCII is copied as is, only other chars are decoded by hand.
+ *
+ * @author Vic
+ */
+final class DeXInput {
+
+	static final int BUFFER_SIZE = 8192;
+	/** Amount of consumed characters that survive a refill */
+	static final int KEEP_SIZE = 1024;
+
+	/** Number of lines shown before and after an error */
+	private static final int CONTEXT_LINES = 2;
+	/** Maximum amount of characters read ahead for the context */
+	private static final int CONTEXT_AHEAD = 256;
+
+	// Kinds of chars that end a run of plain text, anything above 127 is plain
+	private static final byte TEXT = 1;
+	private static final byte QUOTED = 2;
+	private static final byte[] KINDS = new byte[128];
+
+	static {
+		// Brackets only matter for JSON, the reader handles them as single chars otherwise
+		for (char c : "\"\\\n\r,:{}[]".toCharArray()) KINDS[c] |= TEXT;
+		// Line breaks inside of strings still have to be counted
+		for (char c : "\"\\\n\r".toCharArray()) KINDS[c] |= QUOTED;
+	}
+
+	private final Reader reader;
+	// Either the reader or the bytes are used
+	private final ByteBuffer bytes;
+	private final char[] buffer;
+	// Bytes of a direct buffer
+	private byte[] scratch;
+	private int pos, limit;
+	private boolean eof;
+
+	/** Index of the first char in the buffer */
+	private long offset;
+	private int line;
+	private long lineStart;
+	private boolean newLine;
+
+	DeXInput(Reader reader) {
+		this.reader = reader;
+		this.bytes = null;
+		this.buffer = new char[KEEP_SIZE + BUFFER_SIZE];
+	}
+
+	/** Reads the remaining bytes as UTF-8, the position of the buffer doesn't change */
+	DeXInput(ByteBuffer bytes) {
+		this.reader = null;
+		this.bytes = bytes.duplicate();
+		this.buffer = new char[KEEP_SIZE + BUFFER_SIZE];
+	}
+
+	/** Returns the next char or -1 at the end of the input */
+	int read() {
+		if (pos == limit && !fill()) return -1;
+		char c = buffer[pos++];
+		if (c == '\r') {
+			if ((pos < limit || fill()) && buffer[pos] == '\n') pos++;
+			c = '\n';
+		}
+		// A line break belongs to the line it ends
+		if (newLine) {
+			line++;
+			lineStart = offset + pos - 1;
+		}
+		newLine = c == '\n';
+		return c;
+	}
+
+	private boolean fill() {
+		if (eof) return false;
+
+		// Keep some of the text for error messages
+		int keep = Math.min(pos, KEEP_SIZE);
+		System.arraycopy(buffer, pos - keep, buffer, 0, keep);
+		offset += pos - keep;
+		pos = limit = keep;
+
+		try {
+			int read;
+			if (bytes != null) read = decode(buffer.length - limit);
+			else {
+				do read = reader.read(buffer, limit, buffer.length - limit);
+				while (read == 0);
+			}
+
+			if (read < 0) {
+				eof = true;
+				return false;
+			}
+			limit += read;
+			return true;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Decodes up to the given amount of chars to the end of the buffer, -1 if there are no bytes left */
+	private int decode(int length) {
+		int position = bytes.position();
+		int remaining = bytes.limit() - position;
+		if (remaining == 0) return -1;
+
+		byte[] src;
+		int i, end;
+		// False if there are more bytes after the end
+		boolean last = true;
+		if (bytes.hasArray()) {
+			src = bytes.array();
+			i = bytes.arrayOffset() + position;
+			end = i + remaining;
+		} else {
+			// Mapped files are copied in bulk
+			if (scratch == null) scratch = new byte[buffer.length];
+			end = Math.min(remaining, length);
+			last = end == remaining;
+			bytes.get(scratch, 0, end);
+			src = scratch;
+			i = 0;
+		}
+		int first = i;
+
+		int start = limit;
+		int to = limit + length;
+		int out = start;
+		while (out < to && i < end) {
+			int b = src[i];
+			if (b >= 0) {
+				buffer[out++] = (char) b;
+				i++;
+				continue;
+			}
+			// Supplementary chars need two, sequences must not be cut off by the end of the copy
+			if (to - out < 2 || !last && end - i < 4) break;
+
+			// Second bytes that would be overlong or out of range don't fit
+			b &= 0xFF;
+			int n, cp, low = 0x80, high = 0xBF;
+			if (b >= 0xC2 && b <= 0xDF) {
+				n = 1; cp = b & 0x1F;
+			} else if (b >= 0xE0 && b <= 0xEF) {
+				n = 2; cp = b & 0x0F;
+				if (b == 0xE0) low = 0xA0;
+			} else if (b >= 0xF0 && b <= 0xF4) {
+				n = 3; cp = b & 0x07;
+				if (b == 0xF0) low = 0x90;
+				else if (b == 0xF4) high = 0x8F;
+			} else {
+				n = -1; cp = 0;
+			}
+			int j = i + 1;
+			for (int k = 0; k < n; k++, j++) {
+				int c;
+				if (j == end || (c = src[j] & 0xFF) < low || c > high) {
+					n = -1;
+					break;
+				}
+				cp = cp << 6 | c & 0x3F;
+				low = 0x80;
+				high = 0xBF;
+			}
+			// Malformed sequences are replaced up to the first byte that doesn't fit, surrogates as a whole.
+			// That is what the CharsetDecoder does.
+			if (n < 0 || cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) buffer[out++] = '\uFFFD';
+			else if (cp >= 0x10000) {
+				buffer[out++] = Character.highSurrogate(cp);
+				buffer[out++] = Character.lowSurrogate(cp);
+			} else buffer[out++] = (char) cp;
+			i = j;
+		}
+		bytes.position(position + i - first);
+		return out - start;
+	}
+
+	/**
+	 * Number of plain chars that follow, up to the next one that matters to the reader.
+	 * Only looks at what is in the buffer, 0 if it is empty.
+	 */
+	int plain(boolean inQuotes) {
+		return plain(buffer, pos, limit, inQuotes);
+	}
+	
+	/**
+	 * Number of plain chars in the given range, see {@link #plain(boolean)}. A table load per
+	 * char is faster here than four chars at a time in a long, see {@code ParserBenchmark}.
+	 */
+	static int plain(char[] chars, int from, int to, boolean inQuotes) {
+		int mask = inQuotes ? QUOTED : TEXT;
+		int i = from;
+		while (i < to) {
+			char c = chars[i];
+			if (c < 128 && (KINDS[c] & mask) != 0) break;
+			i++;
+		}
+		return i - from;
+	}
+
+	/** Reads the given amount of plain chars into the array, see {@link #plain(boolean)} */
+	void copy(char[] dest, int offset, int length) {
+		if (length == 0) return;
+		System.arraycopy(buffer, pos, dest, offset, length);
+		if (newLine) {
+			line++;
+			lineStart = this.offset + pos;
+			newLine = false;
+		}
+		pos += length;
+	}
+
+	/** Index of the last char returned by {@link #read()} */
+	long index() {
+		return offset + pos - 1;
+	}
+
+	/** Zero based line of the last char returned by {@link #read()} */
+	int line() {
+		return line;
+	}
+
+	/** Zero based column of the last char returned by {@link #read()} */
+	int column() {
+		return (int) (index() - lineStart);
+	}
+
+	/**
+	 * Generates a string with the two lines before and two lines after the
+	 * last char read, pointing at it. This consumes some of the remaining input.
+	 */
+	String context() {
+		int errorLine = line();
+		int end = Math.max(pos - 1, 0);
+
+		// Go back until we found enough lines or ran out of text
+		int start = end;
+		int lines = 0;
+		while (start > 0) {
+			if (buffer[start - 1] == '\n' && ++lines > CONTEXT_LINES) break;
+			start--;
+		}
+		String before = new String(buffer, start, end - start);
+
+		StringBuilder after = new StringBuilder();
+		for (int i = end; i < pos; i++) after.append(buffer[i]);
+		lines = 0;
+		for (int c; after.length() < CONTEXT_AHEAD && (c = read()) != -1;) {
+			if (c == '\n' && ++lines > CONTEXT_LINES) break;
+			after.append((char) c);
+		}
+
+		String[] linesBefore = before.split("\n", -1);
+		String[] linesAfter = after.toString().split("\n", -1);
+
+		StringBuilder ret = new StringBuilder();
+		int lineNumber = errorLine - linesBefore.length + 1;
+		for (int i = 0; i < linesBefore.length - 1; i++) {
+			ret.append(lineNumber++).append(": ").append(linesBefore[i]).append('\n');
+		}
+		ret.append(lineNumber++).append(": ").append(linesBefore[linesBefore.length - 1]).append(" >>>").append(linesAfter[0]);
+		for (int i = 1; i < linesAfter.length; i++) {
+			ret.append('\n').append(lineNumber++).append(": ").append(linesAfter[i]);
+		}
+		return ret.toString();
+	}
+}
@@ -8,7 +8,8 @@ interface DeXIterable<E> extends Iterable<Object> {
 
 	/**
 	 * <p>In order to comply with this interface, the implementation has to coerce
-	 * any {@link Number} to a {@link Double}.</p>
+	 * any {@link Number} to a {@link Double}. Tables with typed numbers
+	 * may return {@link Long} for integers as well.</p>
 	 * 
 	 * <p>Use {@link #rec(Object)} for a cast free alternative.</p>
 	 * 
@@ -112,6 +113,7 @@ interface DeXIterable<E> extends Iterable<Object> {
 	default long getLong(E key, long def) {
 		Object o = get(key);
 		if (o == null) return def;
+		if (o instanceof Long) return (Long) o;
 		if (o instanceof Number) {
 			double d = ((Number) o).doubleValue();
 			if (d % 1 == 0) return (long) d;
@@ -122,6 +124,7 @@ interface DeXIterable<E> extends Iterable<Object> {
 	default long getLong(E key) {
 		Object o = get(key);
 		if (o == null) throw new NullPointerException();
+		if (o instanceof Long) return (Long) o;
 		if (o instanceof Number) {
 			double d = ((Number) o).doubleValue();
 			if (d % 1 == 0) return (long) d;
@@ -2,13 +2,29 @@ package moe.nightfall.dex;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.EmptyStackException;
-import java.util.LinkedHashSet;
-import java.util.Set;
-import java.util.Stack;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import moe.nightfall.dex.DeXReader.Type;
+import moe.nightfall.dex.serialize.ClassSerializer;
 import moe.nightfall.dex.serialize.DeXSerializable.Serializer;
 import moe.nightfall.dex.serialize.Serialization;
 
@@ -21,6 +37,24 @@ public class DeXParser {
 	
 	private boolean prettyPrint = false;
 	
+	/** Maximum nesting of tables, deeper documents fail to parse */
+	private int maxDepth = DeXReader.DEFAULT_MAX_DEPTH;
+	
+	/** Keeps integers as long, see {@link DeXTable.Builder#typedNumbers(boolean)} */
+	private boolean typedNumbers = false;
+	
+	/** Tables of documents in memory are only built once they are used */
+	private boolean lazy = false;
+	
+	/** Shared by all parses, null if every parse gets its own */
+	private SymbolTable symbols = null;
+	
+	/** Parses big documents on this pool, null for sequential parsing */
+	private ForkJoinPool pool = null;
+	
+	/** Minimum size of every chunk that is parsed in parallel */
+	static final int CHUNK_SIZE = 1 << 16;
+	
 	private DeXParser() {}
 	
 	public static DeXParser create() {
@@ -32,6 +66,67 @@ public class DeXParser {
 		return this;
 	}
 	
+	public DeXParser maxDepth(int maxDepth) {
+		if (maxDepth < 1) throw new IllegalArgumentException("Depth has to be at least 1");
+		this.maxDepth = maxDepth;
+		return this;
+	}
+	
+	public DeXParser typedNumbers(boolean typedNumbers) {
+		this.typedNumbers = typedNumbers;
+		return this;
+	}
+	
+	/** Same as {@link #parallel(ForkJoinPool)} on the common pool */
+	public DeXParser parallel(boolean parallel) {
+		return parallel(parallel ? ForkJoinPool.commonPool() : null);
+	}
+	
+	/**
+	 * Parses documents that are in memory on the given pool, if they are big enough.
+	 * The entries of the document are split into chunks that are parsed in parallel,
+	 * the result is the same as parsing the document sequentially. This includes
+	 * errors, a document that fails to parse is parsed again sequentially to report them.
+	 * Null turns parallel parsing off.
+	 */
+	public DeXParser parallel(ForkJoinPool pool) {
+		this.pool = pool;
+		return this;
+	}
+	
+	/**
+	 * Only reads the entries of documents that are in memory, their tables are skipped over
+	 * and built on first access. Tables of those tables are lazy again. The reader still goes
+	 * over the whole text, so syntax errors are reported by the parse like before.
+	 * 
+	 * <p>This works for strings, files, byte arrays and buffers, the bytes are decoded into a
+	 * string first. Readers and streams can't be read again, parsing them throws an
+	 * {@link IllegalStateException}. Parsing into a class ignores this setting.</p>
+	 * 
+	 * <p>The values of the tables are the same as with a normal parse. They are built with the
+	 * settings the parser had at the time of the parse, a serializer that fails to deserialize
+	 * a table throws when the table is accessed. Any number of threads can access a lazy table,
+	 * every table is only built once.</p>
+	 */
+	public DeXParser lazy(boolean lazy) {
+		this.lazy = lazy;
+		return this;
+	}
+	
+	/**
+	 * Keys and tags are only kept once per parse, this shares them between all parses
+	 * of this parser and any other that uses the same table. Null gives every parse
+	 * its own {@link SymbolTable}.
+	 */
+	public DeXParser symbols(SymbolTable symbols) {
+		this.symbols = symbols;
+		return this;
+	}
+	
+	public SymbolTable getSymbols() {
+		return symbols;
+	}
+	
 	public DeXParser prettyPrint(boolean prettyPrint) {
 		this.prettyPrint = prettyPrint;
 		return this;
@@ -69,46 +164,115 @@ public class DeXParser {
 	}
 	
 	public String serialize(Object o) {
-		return DeX.print(decompose(o), prettyPrint);
+		StringWriter writer = new StringWriter();
+		serialize(o, writer);
+		return writer.toString();
 	}
 	
 	public String serialize(DeXTable table) {
 		return DeX.print(DeX.mapToTable(table, serialization), prettyPrint);
 	}
 	
-	/** Mutable table for parsing */
+	/** Prints the object to the writer as it goes, the writer doesn't get closed afterwards */
+	public void serialize(Object o, Writer writer) {
+		// Anything that isn't a table on its own gets wrapped
+		if (o == null || DeX.isPrimitive(o)) {
+			DeX.write(decompose(o), writer, prettyPrint);
+			return;
+		}
+		DeXWriter out = new DeXWriter(writer, prettyPrint);
+		DeX.decompose(o, out, serialization);
+		out.flush();
+	}
+	
+	public void serialize(DeXTable table, Writer writer) {
+		DeX.write(DeX.mapToTable(table, serialization), writer, prettyPrint);
+	}
+	
+	/** Mutable table for parsing, gets reused for all tables on the same level */
 	private final class RawTable {
 
-		final String tag;
-		boolean array = true;
-		Set<Entry> values = new LinkedHashSet<>();
-
-		RawTable(String tag) {
+		String tag;
+		boolean array;
+		Object[] keys = new Object[16];
+		Object[] values = new Object[16];
+		// Numbers are kept unboxed, values[i] is null for them
+		long[] numbers = new long[16];
+		byte[] kinds = new byte[16];
+		int size;
+		
+		/** The key of the next entry */
+		Object key;
+		
+		void reset(String tag) {
 			this.tag = tag;
+			this.array = true;
+			this.key = null;
 		}
 
 		DeXTable compile() {
-			DeXTable.Builder builder = DeXTable.builder(tag, values.size());
-			int i = 0;
-			for (Entry entry : values) {
-				Object value = entry.value;
-				Object key = i++;
+			DeXTable.Builder builder = DeXTable.builder(tag, size).typedNumbers(typedNumbers);
+			for (int i = 0; i < size; i++) {
+				// Arrays use the position as key
+				Object key = null;
 				if (!array) {
-					if (entry.key != null) {
-						key = DeX.compose(entry.key, serialization);
-					}
+					if (keys[i] != null) {
+						key = DeX.compose(keys[i], serialization);
+					} else key = i;
+				}
+				switch (kinds[i]) {
+				case Column.DOUBLE: builder.putDouble(key, Double.longBitsToDouble(numbers[i])); break;
+				case Column.LONG: builder.putLong(key, numbers[i]); break;
+				default: builder.put(key, DeX.compose(values[i], serialization));
 				}
-				value = DeX.compose(value, serialization);
-				builder.put(key, value);
 			}
 			
+			// Don't hold on to anything
+			Arrays.fill(keys, 0, size, null);
+			Arrays.fill(values, 0, size, null);
+			size = 0;
+			
 			return builder.create();
 		}
 		
-		void add(Object key, Object value, int index, int line, String source) {
-			
+		/** Appends the entries of another table, positions continue where this ends */
+		void addAll(RawTable other) {
+			if (!other.array) array = false;
+			if (size + other.size > keys.length) {
+				int length = Math.max(keys.length * 2, size + other.size);
+				keys = Arrays.copyOf(keys, length);
+				values = Arrays.copyOf(values, length);
+				numbers = Arrays.copyOf(numbers, length);
+				kinds = Arrays.copyOf(kinds, length);
+			}
+			System.arraycopy(other.keys, 0, keys, size, other.size);
+			System.arraycopy(other.values, 0, values, size, other.size);
+			System.arraycopy(other.numbers, 0, numbers, size, other.size);
+			System.arraycopy(other.kinds, 0, kinds, size, other.size);
+			size += other.size;
+		}
+		
+		void add(Object value) {
 			// Filter out empty
-			if (value == null) return;
+			if (value == null) {
+				key = null;
+				return;
+			}
+			append(value, Column.OBJECT, 0);
+		}
+		
+		void add(double value) {
+			append(null, Column.DOUBLE, Double.doubleToRawLongBits(value));
+		}
+		
+		void add(long value) {
+			append(null, Column.LONG, value);
+		}
+		
+		private void append(Object value, byte kind, long number) {
+			Object key = this.key;
+			this.key = null;
+			
 			// This is not an array.
 			if (key != null) array = false;
 			
@@ -118,411 +282,419 @@ public class DeXParser {
 					if (table.hasTag()) {
 						key = table.tag();
 					}
+				} else if (value instanceof LazyValue) {
+					String tag = ((LazyValue) value).tag;
+					if (tag.length() > 0) key = tag;
 				}
 			}
-			values.add(new Entry(key, value));
+			
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+				numbers = Arrays.copyOf(numbers, size * 2);
+				kinds = Arrays.copyOf(kinds, size * 2);
+			}
+			keys[size] = key;
+			values[size] = value;
+			numbers[size] = number;
+			kinds[size] = kind;
+			size++;
 		}
 	}
 	
-	private static final class Entry {
-		Object key, value;
-		
-		Entry(Object key, Object value) {
-			this.key = key;
-			this.value = value;
-		}
-
-		@Override
-		public int hashCode() {
-			if (key != null)
-				return key.hashCode();
-			else return super.hashCode();
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			if (this == obj) return true;
-			if (obj == null) return false;
-			if (obj instanceof Entry) {
-				return key.equals(((Entry) obj).key);
-			}
-			return false;
-		}
+	public DeXTable parse(String text) {
+		if (lazy) return copy().lazyTable(text, 0, text.length(), "", symbols());
+		if (pool != null && text.length() >= 2 * CHUNK_SIZE) return parseParallel(text);
+		return parse(new StringReader(text));
 	}
 	
-	private final class ParserData {
-		
-		final String source;
-
-		RawTable baseTable = new RawTable("");
-		Stack<Entry> stack = new Stack<>();
-		
-		// True if we are currently in string context, means " was opened
-		boolean stringContext = false;
-		// True if we WERE in a string context this token
-		boolean wasStringContext = false;
-		
-		// This is where we are at now;
-		int lineNumber = 0;
-		int index = 0;
-		
-		boolean escape = false;
-		
-		public ParserData(String source) {
-			this.source = source;
-			this.stack.add(new Entry(null, baseTable));
-		}
-		
-		void push(char c) {
-			Entry entry = stack.peek();
-			if (entry.value instanceof StringBuilder) {
-				StringBuilder sb = ((StringBuilder) entry.value);
-				sb.append(c);
-			} else if (entry.value == null) { 
-				// A whitespace can't start a new token
-				if (c == ' ') return;
-				entry.value = new StringBuilder().append(c);
-			} else {
-				// Can't insert, need a new entry
-				// A whitespace can't start a new token
-				if (c == ' ') return;
-				stack.push(new Entry(null, new StringBuilder().append(c)));
+	public DeXTable parse(CharSequence cs) {
+		return parse(cs.toString());
+	}
+	
+	public DeXTable parse(File file) {
+		return parse(file.toPath());
+	}
+	
+	/** 
+	 * Reads the file as UTF-8, in parallel and lazy mode it is read into memory first.
+	 * Otherwise big files are mapped into memory and parsed like {@link #parse(ByteBuffer)},
+	 * so they are read straight from the page cache.
+	 */
+	public DeXTable parse(Path path) {
+		try {
+			if (pool != null || lazy) return parse(new String(Files.readAllBytes(path), StandardCharsets.UTF_8));
+			
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				long size = channel.size();
+				// Small files aren't worth the mapping, mappings can't be larger than 2 GB
+				if (size < CHUNK_SIZE) return parse(Files.readAllBytes(path));
+				if (size <= Integer.MAX_VALUE) return parse(channel.map(MapMode.READ_ONLY, 0, size));
 			}
-		}
-		
-		void popKey() {
-			wasStringContext = false;
-			Entry entry = stack.peek();
-			if (entry.value == null) {
-				throw new UnexpectedTokenException(index, lineNumber, source);
-			} else {
-				entry.key = entry.value;
-				if (entry.key instanceof StringBuilder)
-					entry.key = coerce((StringBuilder) entry.key);
-				entry.value = null;
-				//System.out.println("Popped key " + entry.key);
+			try (Reader reader = new InputStreamReader(Files.newInputStream(path), StandardCharsets.UTF_8)) {
+				return parse(reader);
 			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
 		}
-		
-		void pushTable() {
-//			System.out.println("Pushed table");
-			Entry entry = stack.peek();
-			if (entry.value instanceof StringBuilder) {
-				wasStringContext = false;
-				if (stringContext) throw new UnexpectedTokenException(index, lineNumber, source, "\" expected");
-				entry.value = new RawTable(stripTrailingWhitespace(entry.value.toString()));
-			} else if (entry.value == null) {
-				entry.value = new RawTable("");
-			} else { 
-				// Can't insert, need a new entry
-				stack.push(new Entry(null, new RawTable("")));
+	}
+	
+	/** Parses UTF-8 */
+	public DeXTable parse(byte[] data) {
+		return parse(ByteBuffer.wrap(data));
+	}
+	
+	/** 
+	 * Parses the remaining bytes of the buffer as UTF-8, the position of the buffer doesn't change.
+	 * The bytes are decoded as the parser goes, without creating a string of the whole document first.
+	 * That is unless the parser is lazy, see {@link #lazy(boolean)}.
+	 */
+	public DeXTable parse(ByteBuffer data) {
+		if (lazy) return parse(StandardCharsets.UTF_8.decode(data.duplicate()).toString());
+		return build(reader(new DeXInput(data), symbols()));
+	}
+	
+	/** Reads data written by {@link DeXBinary} */
+	public DeXTable parseBinary(byte[] data) {
+		return new DeXBinary.Reader(data, typedNumbers, maxDepth, serialization).document();
+	}
+	
+	/** Reads data written by {@link DeXBinary}, the stream doesn't get closed afterwards */
+	public DeXTable parseBinary(InputStream in) {
+		return parseBinary(DeXBinary.Reader.readAll(in));
+	}
+	
+	/** 
+	 * Writes the table in the binary form, see {@link DeXBinary}. Tags are kept,
+	 * objects in the table are decomposed with the serialization of this parser.
+	 */
+	public byte[] serializeBinary(DeXTable table) {
+		return DeXBinary.toBytes(table, serialization);
+	}
+	
+	/** Parses the stream, it doesn't get closed afterwards */
+	public DeXTable parse(InputStream in, Charset charset) {
+		return parse(new InputStreamReader(in, charset));
+	}
+	
+	/** 
+	 * Parses the text provided by the reader, which doesn't get closed afterwards.
+	 * The reader is consumed through a fixed size buffer, there is no need to wrap it.
+	 */
+	public DeXTable parse(Reader reader) {
+		if (lazy) throw new IllegalStateException("Lazy parsing needs the document in memory");
+		return build(reader(reader));
+	}
+	
+	public <T> T parse(String text, Class<T> type) {
+		return parse(new StringReader(text), type);
+	}
+	
+	/**
+	 * Parses the text into an object of the given class, the same as composing the
+	 * parsed table. The object can also be wrapped in a table of its own, like the
+	 * output of {@link #serialize(Object)}.
+	 * 
+	 * <p>Objects that are deserialized by a {@link ClassSerializer} are bound while parsing,
+	 * their fields get set as the keys arrive and unknown keys are skipped. No
+	 * tables are built for them.</p>
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T parse(Reader reader, Class<T> type) {
+		if (!ClassSerializer.canBind(type, serialization)) {
+			DeXTable table = build(reader(reader));
+			Object in = table;
+			if (table.size() == 1) {
+				Object value = table.values().get(0);
+				if (value instanceof DeXTable || type.isInstance(value)) in = value;
 			}
+			return (T) DeX.compose(type, in, serialization);
 		}
 		
-		void popTable() {
-			try {
-				Entry entry = stack.peek();
-				if (!(entry.value instanceof RawTable)) {
-					// Remove last index on the list S
-					popValue(false);
-					entry = stack.peek();
-				}
-				
-				if (!(entry.value instanceof RawTable) || stack.size() < 2) 
-					throw new UnexpectedTokenException(index, lineNumber, source);
-				entry.value = ((RawTable)entry.value).compile();
-			} catch (EmptyStackException e) {
-				throw e;
-			}
+		DeXReader in = reader(reader);
+		try {
+			in.next();
+			T obj = ClassSerializer.bindDocument(type, in, serialization, this::table);
+			// The rest still has to be valid
+			while (in.hasNext()) in.next();
+			return obj;
+		} catch (ParseException | UncheckedIOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ParseException(in.in, "Unexpected error uccorded!", e);
 		}
-		
-		void popValue(boolean eol) {
-			wasStringContext = false;
-			if (stringContext) throw new UnexpectedTokenException(index, lineNumber, source, "\" expected");
-			try {
-				Entry entry = stack.peek();
-				if (entry.value instanceof RawTable) {
-					if (eol) return;
-					else throw new UnexpectedTokenException(index, lineNumber, source);
-				}
-				
-				stack.pop();
-				
-				//System.out.println("Pop: s:" + stack.size() + " " + entry.key + " " + entry.value);
-				Entry parent = stack.peek();
-				if (parent.value instanceof RawTable) {
-					if (entry.value == null) throw new UnexpectedTokenException(index, lineNumber, source);
-					
-					RawTable table = (RawTable) parent.value;
-					if (entry.value instanceof StringBuilder) {
-						StringBuilder sb = (StringBuilder) entry.value;
-						Object value = coerce(sb);
-						if (value == null) {
-							// This is a flag
-							if (entry.key == null) {
-								entry.key = sb.substring(1);
-								entry.value = sb.charAt(0) == '+';
-							} else throw new ParseException(index, lineNumber, source, "Tried to use a flag as value, use quotes if this is supposed to be a string.");
-						} else entry.value = value;
-					}
-					table.add(entry.key, entry.value, index, lineNumber, source);
-				} else {
-					// TODO Error out
-					throw new UnexpectedTokenException(index, lineNumber, source);
-				}
-			} catch (EmptyStackException e) {
-				throw e;
-			}
+	}
+	
+	/** 
+	 * Creates a {@link DeXReader} for event based parsing, using the
+	 * settings of this parser.
+	 */
+	public DeXReader reader(Reader reader) {
+		return reader(reader, symbols());
+	}
+	
+	private DeXReader reader(Reader reader, SymbolTable symbols) {
+		return reader(new DeXInput(reader), symbols);
+	}
+	
+	private DeXReader reader(DeXInput in, SymbolTable symbols) {
+		return new DeXReader(in, parseJSON, maxDepth, typedNumbers, symbols);
+	}
+	
+	private SymbolTable symbols() {
+		return symbols != null ? symbols : new SymbolTable();
+	}
+	
+	public DeXReader reader(String text) {
+		return reader(new StringReader(text));
+	}
+	
+	/** Builds the document from the events of the reader */
+	private DeXTable build(DeXReader reader) {
+		try {
+			reader.next();
+			return table(reader);
+		} catch (ParseException | UncheckedIOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ParseException(reader.in, "Unexpected error uccorded!", e);
 		}
-		
-		Object coerce(StringBuilder value) {
-			String s = value.toString();
-			s = stripTrailingWhitespace(s);
-			
-			if (!stringContext) {
-				Double number = DeX.parseDeXNumber(s);
-				if (number != null) return number;
+	}
+	
+	/** Builds the table that was just started, up to its end */
+	private DeXTable table(DeXReader reader) {
+		RawTable table = new RawTable();
+		table.reset(reader.tag());
+		fill(table, reader);
+		return table.compile();
+	}
+	
+	/** Adds the entries of the table that was just started, up to its end */
+	private void fill(RawTable table, DeXReader reader) {
+		// One table for every level, the current one is on index 0
+		RawTable[] stack = new RawTable[16];
+		int depth = 0;
+		stack[0] = table;
+		while (true) {
+			switch (reader.next()) {
+			case START_TABLE:
+				if (++depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+				if (stack[depth] == null) stack[depth] = new RawTable();
+				stack[depth].reset(reader.tag());
+				break;
+			case KEY:
+				stack[depth].key = reader.value();
+				break;
+			case VALUE:
+				value(stack[depth], reader);
+				break;
+			case END_TABLE:
+				if (depth == 0) return;
+				DeXTable child = stack[depth--].compile();
 				
-				char first = s.charAt(0);
-				if (first == '-' || first == '+') {
-					// This is a flag, we have to push this as key...
-					// Of course only works if there is no key defined
-					// We return null in this case, so that pushValue can do what it has to
-					return null;
-				}
-				// Booleans
-				if (s.equals("true") || s.equals("yes") || s.equals("on")) return true;
-				if (s.equals("false") || s.equals("no") || s.equals("off")) return false;
+				if (reader.isKey()) stack[depth].key = child;
+				else stack[depth].add(child);
 			}
-			return s;
-		}
-		
-		private String stripTrailingWhitespace(String s) {
-			if (wasStringContext) return s;
-			// Get rid of all trailing whitespace
-			char c = s.charAt(s.length() - 1);
-			if (c == ' ') {
-				int index = s.length() - 1;
-				while (true) {
-					index--;
-					if (s.charAt(index) != ' ') {
-						s = s.substring(0, index + 1);
-						break;
-					}
-				}
-			}
-			return s;
 		}
 	}
 	
-	public DeXTable parse(String text) {
-		ParserData d = new ParserData(text);
+	private void value(RawTable table, DeXReader reader) {
+		// Numbers skip the boxing
+		if (reader.type() != Type.NUMBER) table.add(reader.value());
+		else if (typedNumbers && reader.isLong()) table.add(reader.longValue());
+		else table.add(reader.doubleValue());
+	}
+	
+	/** Builds the table from the part of the text between its braces, the tables in it are lazy */
+	private DeXTable lazyTable(String text, int start, int end, String tag, SymbolTable symbols) {
+		DeXReader reader = reader(new Region(text, start, end), symbols);
 		try {
-			for (d.index = 0; d.index < text.length(); d.index++) {
-				char c = text.charAt(d.index);
-				
-				if (c == '"' && !d.escape) {
-					if (d.stringContext) {
-						d.stringContext = false;
-					} else {
-						if (d.wasStringContext) throw new UnexpectedTokenException(d.index, d.lineNumber, d.source);
-						d.stringContext = true;
-						d.wasStringContext = true;
-						
-						// Check if this is the first token, otherwise fail
-						Entry current = d.stack.peek();
-						if (current.value instanceof StringBuilder) 
-							throw new UnexpectedTokenException(d.index, d.lineNumber, d.source);
-					}
-				} else if (c  == '\t' && d.stringContext) {
-					// Don't parse tab, unless in string context
-					d.push(c);
-				} else if (c == '\\') {
-					if (d.escape && d.stringContext) {
-						d.push(c);
-						d.escape = false;
-					} else {
-						d.escape = true;
-					}
-				} else if (c == '\n') {
-					d.lineNumber++;
-					if (d.stringContext) d.push(c);
-					else {
-						if (!d.escape) {
-							d.popValue(true);
-						} else {
-							d.escape = false;
-						}
-					}
-				} else if (d.escape) {
-					if (d.stringContext) {
-						// Escape sequences
-						switch (c) {
-						case '\\' : d.push(c); break;
-						case 'b' : d.push('\b'); break;
-						case 't' : d.push('\t'); break;
-						case 'n' : d.push('\n'); break;
-						case 'f' : d.push('\f'); break;
-						case 'r' : d.push('\r'); break;
-						case '"' : d.push('\"'); break;
-						case 'u' :
-							String sequence = d.source.substring(d.index, d.index + 4);
-							try {
-								d.push((char) Integer.parseInt(sequence, 16));
-							} catch (NumberFormatException e) {
-								throw new InvalidEscapeSequenceException(d.index, d.lineNumber, d.source);
-							}
-							d.index += 4;
-							break;
-						}
-					} else {
-						throw new UnexpectedTokenException(d.index, d.lineNumber, d.source, "Found escape sequence outside of string context");
-					}
-					d.escape = false;
-				} else if (!d.stringContext) {
-					if (c == ',') {
-						d.popValue(false);
-					} else if (c == ':') {
-						d.popKey();
-					} else if (c == '{') {
-						d.pushTable();
-					} else if (c == '}') {
-						d.popTable();
-					} else {
-						if (parseJSON) {
-							// Treat [] like {} to read JSON
-							if (c == '[') d.pushTable();
-							else if(c == ']') d.popTable();
-						} else d.push(c);
-					}
-				} else {
-					d.push(c);
-				}
-			}
-		} catch (IndexOutOfBoundsException e) {
-			throw new ParseException(d.index, d.lineNumber, d.source, "Unexpected end of file", e);
-		} catch (ParseException e) {
+			reader.next();
+			RawTable table = new RawTable();
+			table.reset(tag);
+			fillLazy(table, reader, text, start, symbols);
+			return table.compile();
+		} catch (ParseException | UncheckedIOException e) {
 			throw e;
 		} catch (Exception e) {
-			throw new ParseException(d.index, d.lineNumber, d.source, "Unexpected error uccorded!", e);
+			throw new ParseException(reader.in, "Unexpected error uccorded!", e);
 		}
-		
-		// Check if anything is left on the stack
-		if (d.stack.size() > 1) d.popValue(true);
-		if (d.stack.size() != 1) throw new ParseException(d.index, d.lineNumber, d.source, "Unexpected end of file");
-		return d.baseTable.compile();
 	}
 	
-	public DeXTable parse(CharSequence cs) {
-		return parse(cs.toString());
+	/** Same as {@link #fill(RawTable, DeXReader)}, but tables are only skipped */
+	private void fillLazy(RawTable table, DeXReader reader, String text, int offset, SymbolTable symbols) {
+		while (true) {
+			switch (reader.next()) {
+			case START_TABLE:
+				String tag = reader.tag();
+				int start = offset + (int) reader.in.index() + 1;
+				reader.skipTable();
+				int end = offset + (int) reader.closeIndex();
+				LazyValue child = new LazyValue(tag, () -> DeX.compose(lazyTable(text, start, end, tag, symbols), serialization));
+				
+				// Keys are needed right away
+				if (reader.isKey()) table.key = child.get();
+				else table.add(child);
+				break;
+			case KEY:
+				table.key = reader.value();
+				break;
+			case VALUE:
+				value(table, reader);
+				break;
+			case END_TABLE:
+				return;
+			}
+		}
 	}
 	
-	public DeXTable parse(File file) {
+	/** The settings of this parser, for tables that are built later */
+	private DeXParser copy() {
+		DeXParser copy = new DeXParser();
+		copy.serialization = serialization;
+		copy.parseJSON = parseJSON;
+		copy.prettyPrint = prettyPrint;
+		copy.maxDepth = maxDepth;
+		copy.typedNumbers = typedNumbers;
+		copy.symbols = symbols;
+		return copy;
+	}
+	
+	/** A part of a string, without copying it */
+	private static final class Region extends Reader {
+		
+		private final String text;
+		private int pos;
+		private final int end;
+		
+		Region(String text, int start, int end) {
+			this.text = text;
+			this.pos = start;
+			this.end = end;
+		}
+		
+		@Override
+		public int read(char[] cbuf, int off, int len) {
+			if (pos == end) return -1;
+			int n = Math.min(len, end - pos);
+			text.getChars(pos, pos + n, cbuf, off);
+			pos += n;
+			return n;
+		}
+		
+		@Override
+		public void close() {}
+	}
+	
+	/** 
+	 * Parses the chunks of the document on the pool and puts their entries together in order,
+	 * as if they were read one after the other.
+	 */
+	private DeXTable parseParallel(String text) {
+		int[] ends = Chunks.split(text, CHUNK_SIZE, parseJSON);
+		if (ends == null) return parse(new StringReader(text));
+		
+		// All chunks belong to the same parse
+		SymbolTable symbols = symbols();
+		List<ForkJoinTask<RawTable>> chunks = new ArrayList<>(ends.length);
+		int start = 0;
+		for (int end : ends) {
+			int from = start;
+			chunks.add(pool.submit(() -> chunk(text, from, end, symbols)));
+			start = end;
+		}
+		
 		try {
-			return parse(String.join("\n", Files.readAllLines(Paths.get(file.toURI()))));
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			RawTable document = new RawTable();
+			document.reset("");
+			for (ForkJoinTask<RawTable> chunk : chunks) document.addAll(chunk.join());
+			return document.compile();
+		} catch (RuntimeException e) {
+			for (ForkJoinTask<RawTable> chunk : chunks) chunk.cancel(false);
+			// Errors of serializers are passed on, they shouldn't run twice
+			if (!(e instanceof ParseException)) throw e;
+			// The positions within a chunk are off, the sequential parse reports the error
+			return build(reader(text));
 		}
 	}
 	
+	/** The entries of a part of the document */
+	private RawTable chunk(String text, int start, int end, SymbolTable symbols) {
+		DeXReader reader = reader(new Region(text, start, end), symbols);
+		reader.next();
+		RawTable table = new RawTable();
+		table.reset("");
+		fill(table, reader);
+		return table;
+	}
+	
 	public static class ParseException extends RuntimeException {
 		private static final long serialVersionUID = 2169899005064859506L;
 		
-		ParseException(int index, int line, String source, String message) {
-			super(message + ":\n" + generateDetailMessage(index, line, source));
+		private final long index;
+		private final int line, column;
+		
+		ParseException(DeXInput in, String message) {
+			this(in, message, null);
+		}
+		ParseException(DeXInput in, String message, Exception e) {
+			// The position has to be taken before the context consumes more input
+			this(in, in.index(), in.line(), in.column(), message, e);
 		}
-		ParseException(int index, int line, String source, String message, Exception e) {
-			super(message + ":\n" + generateDetailMessage(index, line, source), e);
+		/** For binary data, which has no lines */
+		ParseException(long index, String message) {
+			super(message + " at byte " + index);
+			this.index = index;
+			this.line = -1;
+			this.column = -1;
+		}
+		private ParseException(DeXInput in, long index, int line, int column, String message, Exception e) {
+			super(message + " at line " + line + ", column " + column + ":\n" + in.context(), e);
+			this.index = index;
+			this.line = line;
+			this.column = column;
+		}
+		
+		/** Zero based index of the offending char, or byte for binary data */
+		public long getIndex() {
+			return index;
+		}
+		
+		/** Zero based line of the offending char, -1 for binary data */
+		public int getLine() {
+			return line;
+		}
+		
+		/** Zero based column of the offending char, -1 for binary data */
+		public int getColumn() {
+			return column;
 		}
 	}
 	
 	public static class KeyDuplicationException extends ParseException {
 		private static final long serialVersionUID = -9210668030112796649L;
 
-		KeyDuplicationException(int index, int line, String source) {
-			super(index, line, source, "Duplicate key found");
+		KeyDuplicationException(DeXInput in) {
+			super(in, "Duplicate key found");
 		}
 	}
 	
 	public static class UnexpectedTokenException extends ParseException {
 		private static final long serialVersionUID = -1101771027977345797L;
 		
-		UnexpectedTokenException(int index, int line, String source) {
-			super(index, line, source, "Unexpected token found");
+		UnexpectedTokenException(DeXInput in) {
+			super(in, "Unexpected token found");
 		}
-		UnexpectedTokenException(int index, int line, String source, String detail) {
-			super(index, line, source, detail);
+		UnexpectedTokenException(DeXInput in, String detail) {
+			super(in, detail);
 		}
 	}
 	
 	public static class InvalidEscapeSequenceException extends ParseException {
 		private static final long serialVersionUID = -2566118826766886695L;
 
-		InvalidEscapeSequenceException(int index, int line, String source) {
-			super(index, line, source, "Invalid escape sequence found");
+		InvalidEscapeSequenceException(DeXInput in) {
+			super(in, "Invalid escape sequence found");
 		}
 	}
-	
-	/**
-	 * Generates a string with the two lines before and two lines after an error,
-	 * pointing at the error
-	 */
-	//TODO This fails once in a while so check what's up with this...
-	private static String generateDetailMessage(int index, int line, String source) {
-		if (source == null) return "?";
-		
-		StringBuilder ret = new StringBuilder();
-		
-		int lineStart = source.lastIndexOf('\n', index - 1);
-		int lineEnd = source.indexOf('\n', index);
-		
-		final int range = 2;
-		String[] lines = new String[range * 2 + 1]; 
-		
-		if (lineStart == -1) lineStart = 0;
-		else {
-			int ls2 = lineStart;
-			for (int i = 0; i < range; i++) {
-				int ls3 = source.lastIndexOf('\n', ls2 - 1);
-				if (ls3 == -1) {
-					if (ls2 > 0) ls3 = 0;
-					else break;
-				}
-				lines[range - 1 - i] = source.substring(ls3, ls2);
-				ls2 = ls3;
-			}
-		}
-		
-		if (lineEnd == -1) lineEnd = source.length();
-		else {
-			int ls2 = lineEnd;
-			for (int i = 0; i < range; i++) {
-				int ls3 = source.indexOf('\n', ls2 + 1);
-				if (ls3 == -1) {
-					if (ls2 < source.length() - 1) ls3 = source.length() - 1;
-					else break;
-				}
-				
-				lines[range + 1 + i] = source.substring(ls2 + 1, ls3);
-				ls2 = ls3;
-			}
-		}
-	
-		lines[range] = source.substring(Math.min(lineStart + 1, index), index) + " >>>" + source.substring(index, lineEnd);
-		
-		for (int i = 0; i < lines.length; i++) {
-			String l = lines[i];
-			if (l == null) continue;
-			int lineNumber = line - range + i;
-			
-			ret.append(lineNumber).append(": ");
-			ret.append(l);
-			
-			if (i != lines.length - 1) {
-				ret.append('\n');
-			}
-		}
-		
-		return ret.toString();
-	}
 }
@@ -0,0 +1,551 @@
+package moe.nightfall.dex;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import moe.nightfall.dex.DeXParser.InvalidEscapeSequenceException;
+import moe.nightfall.dex.DeXParser.ParseException;
+import moe.nightfall.dex.DeXParser.UnexpectedTokenException;
+
+/**
+ * Pull based reader for DeX, this is the tokenizer behind {@link DeXParser#parse(Reader)}.
+ * It reports the structure of a document as a sequence of {@link Event}s without building
+ * any {@link DeXTable}, which allows to process documents of any size with constant memory.
+ *
+ * <p>The document itself is reported as a table with an empty tag, the first event is always
+ * {@link Event#START_TABLE} and the last one the matching {@link Event#END_TABLE}.</p>
+ *
+ * <pre>
+ * DeXReader reader = parser.reader(new FileReader(file));
+ * while (reader.hasNext()) {
+ *     switch (reader.next()) {
+ *     case START_TABLE: reader.tag(); break;
+ *     case KEY:
+ *     case VALUE: reader.type(); reader.value(); break;
+ *     case END_TABLE: reader.isKey(); break;
+ *     }
+ * }
+ * </pre>
+ *
+ * A table that is used as key gets reported like any other table,
+ * {@link #isKey()} returns true for its {@link Event#END_TABLE}.
+ * A key can be followed by another one, which replaces it.
+ *
+ * @author Vic
+ */
+public final class DeXReader {
+
+	public enum Event {
+		/** A table starts, see {@link DeXReader#tag()} */
+		START_TABLE,
+		/** A scalar that is the key of the following value */
+		KEY,
+		/** A scalar value */
+		VALUE,
+		/** The current table ends, see {@link DeXReader#isKey()} */
+		END_TABLE
+	}
+
+	public enum Type {
+		STRING, NUMBER, BOOLEAN, TABLE
+	}
+
+	// What we have seen of the current entry
+	private static final int NONE = 0;
+	private static final int TEXT = 1;
+	private static final int QUOTED = 2;
+	private static final int QUOTED_DONE = 3;
+	private static final int TABLE_DONE = 4;
+
+	private static final int NO_PEEK = -2;
+	
+	public static final int DEFAULT_MAX_DEPTH = 512;
+
+	final DeXInput in;
+	private final boolean parseJSON;
+	private final int maxDepth;
+	private final boolean typedNumbers;
+	// Keys and tags are looked up here, null if every one gets its own string
+	private final SymbolTable symbols;
+
+	// The text of the current token, reused for all of them
+	private char[] token = new char[64];
+	private int length;
+	// Where the quotes of the current token ended, text after them is part of the string
+	private int quotedLength;
+	private final NumberParser numbers = new NumberParser();
+	
+	private int state = NONE;
+	private boolean escape = false;
+	private int peeked = NO_PEEK;
+
+	// State of every level, index 1 is the document
+	private int depth = 0;
+	// True if the current entry already has a key
+	private boolean[] hasKey = new boolean[16];
+	// True if the table was opened with [ in JSON mode
+	private boolean[] bracket = new boolean[16];
+	// Where the table was opened
+	private int[] startLine = new int[16];
+	private int[] startColumn = new int[16];
+
+	// Current event
+	private Event event;
+	private Type type;
+	private String tag;
+	private boolean isKey;
+	// The current scalar, its text is kept in the token buffer
+	private int textOffset, textLength;
+	private String text;
+	private double number;
+	// Only valid if the number is integral
+	private long longNumber;
+	private boolean integral;
+	private boolean bool;
+	// Index of the char that closed the last table
+	private long closeIndex;
+
+	// Events that are already known, in order
+	private boolean pendingFlag, flag;
+	private boolean pendingEnd;
+	private boolean finished;
+
+	public DeXReader(Reader reader) {
+		this(new DeXInput(reader), false, DEFAULT_MAX_DEPTH, false, null);
+	}
+
+	public DeXReader(String text) {
+		this(new StringReader(text));
+	}
+
+	DeXReader(DeXInput in, boolean parseJSON, int maxDepth, boolean typedNumbers, SymbolTable symbols) {
+		this.in = in;
+		this.parseJSON = parseJSON;
+		this.maxDepth = maxDepth;
+		this.typedNumbers = typedNumbers;
+		this.symbols = symbols;
+	}
+
+	public boolean hasNext() {
+		return !finished;
+	}
+
+	public Event next() {
+		if (finished) throw new NoSuchElementException();
+		if (event == null) return startTable("");
+
+		if (pendingFlag) {
+			pendingFlag = false;
+			bool = flag;
+			text = String.valueOf(flag);
+			return scalar(Event.VALUE, Type.BOOLEAN);
+		}
+		if (pendingEnd) {
+			pendingEnd = false;
+			return endTable();
+		}
+
+		for (int i; (i = read()) != -1;) {
+			Event e = process((char) i);
+			if (e != null) return e;
+		}
+
+		// End of file
+		if (state == QUOTED) throw new UnexpectedTokenException(in, "\" expected");
+		if (depth > 1) throw new ParseException(in, "Unexpected end of file, table opened at line " 
+			+ startLine[depth] + ", column " + startColumn[depth] + " isn't closed");
+		return close(terminate(true));
+	}
+
+	/**
+	 * Skips the rest of the table that was just started, after this
+	 * call the current event is the matching {@link Event#END_TABLE}.
+	 */
+	public void skipTable() {
+		if (event != Event.START_TABLE) throw new IllegalStateException("No table started");
+		int target = depth - 1;
+		while (next() != Event.END_TABLE || depth != target);
+	}
+
+	public Event event() {
+		return event;
+	}
+
+	/** The type of the current key or value, {@link Type#TABLE} for tables */
+	public Type type() {
+		return type;
+	}
+
+	/** The tag of the table that was just started */
+	public String tag() {
+		return tag;
+	}
+
+	/**
+	 * True if the current event is a {@link Event#KEY} or the
+	 * end of a table that is used as a key
+	 */
+	public boolean isKey() {
+		return isKey;
+	}
+
+	/**
+	 * The current scalar, numbers are represented as {@link Double},
+	 * null for tables. Use the typed getters to avoid boxing.
+	 * 
+	 * <p>With typed numbers integers that fit into a long are represented
+	 * as {@link Long} instead.</p>
+	 */
+	public Object value() {
+		switch (type) {
+		case NUMBER: return typedNumbers && integral ? (Object) longNumber : (Object) number;
+		case BOOLEAN: return bool;
+		case STRING: return stringValue();
+		default: return null;
+		}
+	}
+
+	/**
+	 * The text of the current scalar as it was written, null for tables.
+	 * The string only gets created once this is called.
+	 */
+	public String stringValue() {
+		if (text == null && type != Type.TABLE) 
+			text = symbols != null && event == Event.KEY ? symbols.intern(token, textOffset, textLength) : new String(token, textOffset, textLength);
+		return text;
+	}
+
+	public double doubleValue() {
+		if (type != Type.NUMBER) throw new IllegalStateException("Current value is not a number");
+		return number;
+	}
+
+	/** True if the current number is an integer that fits into a long without loss */
+	public boolean isLong() {
+		return type == Type.NUMBER && integral;
+	}
+
+	public long longValue() {
+		if (!isLong()) throw new IllegalStateException("Current value is not an integer");
+		return longNumber;
+	}
+
+	public boolean booleanValue() {
+		if (type != Type.BOOLEAN) throw new IllegalStateException("Current value is not a boolean");
+		return bool;
+	}
+
+	/** Index of the brace that closed the last table, the document has none */
+	long closeIndex() {
+		return closeIndex;
+	}
+
+	/** Nesting level, the document itself has a depth of 1 */
+	public int depth() {
+		return depth;
+	}
+
+	/** Zero based line of the current position */
+	public int line() {
+		return in.line();
+	}
+
+	/** Zero based column of the current position */
+	public int column() {
+		return in.column();
+	}
+
+	private int read() {
+		if (peeked != NO_PEEK) {
+			int c = peeked;
+			peeked = NO_PEEK;
+			return c;
+		}
+		return in.read();
+	}
+
+	private Event process(char c) {
+		if (state == QUOTED) {
+			quoted(c);
+			return null;
+		}
+		if (escape) {
+			escape = false;
+			// Line continuation
+			if (c == '\n') return null;
+			throw new UnexpectedTokenException(in, "Found escape sequence outside of string context");
+		}
+
+		switch (c) {
+		case ' ':
+			// A whitespace can't start a new token
+			if (state == TEXT || state == QUOTED_DONE) {
+				append(c);
+				run(false);
+			}
+			return null;
+		case '"':
+			if (state != NONE) throw new UnexpectedTokenException(in);
+			state = QUOTED;
+			return null;
+		case '\\': escape = true; return null;
+		case '\n': return terminate(true);
+		case ',': return terminate(false);
+		case ':': return key();
+		case '{': return startTable(false);
+		case '}': return closeTable(false);
+		case '[': if (parseJSON) return startTable(true); break;
+		case ']': if (parseJSON) return closeTable(true); break;
+		}
+
+		if (state == NONE) state = TEXT;
+		else if (state != TEXT && state != QUOTED_DONE) throw new UnexpectedTokenException(in);
+		append(c);
+		run(false);
+		return null;
+	}
+
+	private void append(char c) {
+		if (length == token.length) {
+			char[] tmp = new char[length * 2];
+			System.arraycopy(token, 0, tmp, 0, length);
+			token = tmp;
+		}
+		token[length++] = c;
+	}
+
+	/** Appends the plain chars that follow in one go, as found by the index of the input */
+	private void run(boolean inQuotes) {
+		if (peeked != NO_PEEK) return;
+		int n = in.plain(inQuotes);
+		if (n == 0) return;
+		if (length + n > token.length) token = Arrays.copyOf(token, Math.max(token.length * 2, length + n));
+		in.copy(token, length, n);
+		length += n;
+	}
+
+	private void quoted(char c) {
+		if (escape) {
+			escape = false;
+			switch (c) {
+			case '\n': break; // Line continuation
+			case '\\': append('\\'); break;
+			case '"' : append('"'); break;
+			case '/' : append('/'); break;
+			case 'b' : append('\b'); break;
+			case 't' : append('\t'); break;
+			case 'n' : append('\n'); break;
+			case 'f' : append('\f'); break;
+			case 'r' : append('\r'); break;
+			case 'u' :
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(read(), 16);
+					if (digit < 0) throw new InvalidEscapeSequenceException(in);
+					code = code << 4 | digit;
+				}
+				append((char) code);
+				break;
+			// Unknown escapes stand for the char itself
+			default: append(c);
+			}
+		} else if (c == '"') {
+			state = QUOTED_DONE;
+			quotedLength = length;
+		} else if (c == '\\') {
+			escape = true;
+		} else {
+			append(c);
+			run(true);
+		}
+	}
+
+	/** Ends the current entry, returns an event if there was a scalar value */
+	private Event terminate(boolean eol) {
+		switch (state) {
+		case NONE:
+			// Either an empty value or a key without value
+			if (hasKey[depth] || !eol) throw new UnexpectedTokenException(in);
+			return null;
+		case TABLE_DONE:
+			state = NONE;
+			hasKey[depth] = false;
+			return null;
+		default:
+			boolean keyed = hasKey[depth];
+			hasKey[depth] = false;
+			if (resolve()) {
+				if (keyed) throw new ParseException(in, "Tried to use a flag as value, use quotes if this is supposed to be a string.");
+				// A flag, key and value in one token
+				pendingFlag = true;
+				flag = bool;
+				return scalar(Event.KEY, Type.STRING);
+			}
+			return scalar(Event.VALUE, type);
+		}
+	}
+
+	/** A second key replaces the first one */
+	private Event key() {
+		if (state != TEXT && state != QUOTED_DONE) throw new UnexpectedTokenException(in);
+		if (resolve()) {
+			// Flags are only flags without a key, otherwise they are plain text
+			textOffset = 0;
+			textLength++;
+			type = Type.STRING;
+		}
+		hasKey[depth] = true;
+		return scalar(Event.KEY, type);
+	}
+
+	/**
+	 * Converts the current token into a scalar, returns true if it is a flag.
+	 * In this case the text is the name and the value the state of the flag.
+	 */
+	private boolean resolve() {
+		boolean quoted = state == QUOTED_DONE;
+		state = NONE;
+		
+		int length = this.length;
+		// The buffer gets reused by the next token
+		this.length = 0;
+		text = null;
+		textOffset = 0;
+		textLength = length;
+
+		textLength = length = stripTrailingWhitespace(length, quoted);
+		if (quoted) {
+			type = Type.STRING;
+			return false;
+		}
+
+		if (numbers.parse(token, 0, length)) {
+			number = numbers.value;
+			integral = numbers.integral;
+			longNumber = numbers.longValue;
+			type = Type.NUMBER;
+			return false;
+		}
+
+		char first = token[0];
+		if (first == '-' || first == '+') {
+			textOffset = 1;
+			textLength--;
+			bool = first == '+';
+			type = Type.BOOLEAN;
+			return true;
+		}
+
+		type = Type.BOOLEAN;
+		// Booleans
+		if (is("true") || is("yes") || is("on")) bool = true;
+		else if (is("false") || is("no") || is("off")) bool = false;
+		else type = Type.STRING;
+		return false;
+	}
+	
+	/** Compares the current text without creating a string */
+	private boolean is(String s) {
+		if (textLength != s.length()) return false;
+		for (int i = 0; i < textLength; i++) {
+			if (token[textOffset + i] != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/** Whitespace inside of the quotes is kept */
+	private int stripTrailingWhitespace(int length, boolean quoted) {
+		int min = quoted ? quotedLength : 0;
+		while (length > min && token[length - 1] == ' ') length--;
+		return length;
+	}
+
+	private Event startTable(boolean bracket) {
+		String tag;
+		switch (state) {
+		case NONE: tag = ""; break;
+		case TEXT: tag = name(stripTrailingWhitespace(length, false)); break;
+		case QUOTED_DONE: tag = name(stripTrailingWhitespace(length, true)); break;
+		default: throw new UnexpectedTokenException(in);
+		}
+		length = 0;
+		state = NONE;
+		Event e = startTable(tag);
+		this.bracket[depth] = bracket;
+		return e;
+	}
+
+	/** The start of the token as tag */
+	private String name(int length) {
+		return symbols != null ? symbols.intern(token, 0, length) : new String(token, 0, length);
+	}
+
+	private Event startTable(String tag) {
+		if (depth == maxDepth) throw new ParseException(in, "Tables are nested deeper than " + maxDepth + " levels");
+		if (++depth == hasKey.length) {
+			int size = depth * 2;
+			hasKey = Arrays.copyOf(hasKey, size);
+			bracket = Arrays.copyOf(bracket, size);
+			startLine = Arrays.copyOf(startLine, size);
+			startColumn = Arrays.copyOf(startColumn, size);
+		}
+		hasKey[depth] = false;
+		bracket[depth] = false;
+		startLine[depth] = in.line();
+		startColumn[depth] = in.column();
+
+		this.tag = tag;
+		return table(Event.START_TABLE, false);
+	}
+
+	private Event closeTable(boolean bracket) {
+		if (depth == 1 || this.bracket[depth] != bracket) throw new UnexpectedTokenException(in);
+		closeIndex = in.index();
+		return close(terminate(true));
+	}
+
+	/** Emits the end of the current table after the given event */
+	private Event close(Event e) {
+		if (e == null) return endTable();
+		pendingEnd = true;
+		return e;
+	}
+
+	private Event endTable() {
+		if (--depth == 0) {
+			finished = true;
+			return table(Event.END_TABLE, false);
+		}
+
+		// Look ahead, a table followed by : is a key
+		int c;
+		do c = read(); while (c == ' ');
+		boolean isKey = c == ':';
+
+		if (isKey) {
+			hasKey[depth] = true;
+			state = NONE;
+		} else {
+			peeked = c;
+			state = TABLE_DONE;
+		}
+		return table(Event.END_TABLE, isKey);
+	}
+
+	private Event scalar(Event event, Type type) {
+		this.event = event;
+		this.type = type;
+		this.isKey = event == Event.KEY;
+		return event;
+	}
+
+	private Event table(Event event, boolean isKey) {
+		this.event = event;
+		this.type = Type.TABLE;
+		this.text = null;
+		this.isKey = isKey;
+		return event;
+	}
+}
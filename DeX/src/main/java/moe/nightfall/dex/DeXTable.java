@@ -1,28 +1,48 @@
 package moe.nightfall.dex;
 
 import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 
 import moe.nightfall.dex.serialize.Serialization;
 
 /**
- * Immutable table
+ * Immutable table, it can be shared between threads once created.
+ * 
+ * <p>Numbers are coerced to {@link Double}, unless the table was built with
+ * {@link Builder#typedNumbers(boolean)}. Typed tables keep integers as {@link Long}
+ * and store numbers in primitive columns, the getters for numbers read them
+ * without boxing. Numeric keys are always coerced to {@link Double}.</p>
+ * 
+ * <p>Arrays don't store their keys, arrays that only contain numbers
+ * of the same kind are backed by a {@code double[]} or {@code long[]}.</p>
  * 
  * @author Vic
  */
 public final class DeXTable extends AbstractMap<Object, Object> implements DeXIterable<Object> {
 
-	private Set<Entry<Object, Object>> underlying;
-	private DeXArray array;
-	private boolean isArray = true;
+	// Keys and values in insertion order, arrays have no keys
+	private final Object[] keys;
+	private final Column values;
+	/** 
+	 * Open addressing hash index into {@link #keys}, stores position + 1 so that
+	 * 0 marks an empty slot. The length is always a power of two.
+	 */
+	private final int[] index;
+	private final boolean typedNumbers;
 	
 	private final String tag;
 	
+	// Views on the storage, final so that they are safely published with the table
+	private final DeXArray array;
+	private final Set<Entry<Object, Object>> entrySet;
+	
 	public static DeXTable create(Map<?, ?> m) {
 		return create(m, "");
 	}
@@ -44,9 +64,14 @@ public final class DeXTable extends AbstractMap<Object, Object> implements DeXIt
 	}
 	
 	/** Internal constructor for TableBuilder */
-	private DeXTable(int size, String tag) {
+	private DeXTable(String tag, Object[] keys, Column values, int[] index, boolean typedNumbers) {
 		this.tag = tag;
-		underlying = new LinkedHashSet<>(size);
+		this.keys = keys;
+		this.values = values;
+		this.index = index;
+		this.typedNumbers = typedNumbers;
+		this.array = new DeXArray(this, values);
+		this.entrySet = new EntrySet();
 	}
 	
 	public static Builder builder(String tag, int size) { return new Builder(size, tag); }
@@ -55,57 +80,133 @@ public final class DeXTable extends AbstractMap<Object, Object> implements DeXIt
 	public static Builder builder() { return new Builder(16, ""); }
 	
 	public Builder copy() {
-		return new Builder(size(), tag()).addAll((Map<Object, Object>) this);
+		return copy(tag());
 	}
 	
 	public Builder copy(String tag) {
-		return new Builder(size(), tag).addAll((Map<Object, Object>) this);
+		return new Builder(size(), tag).typedNumbers(typedNumbers).addAll((Map<Object, Object>) this);
 	}
 	
 	public static class Builder {
 		
-		private DeXTable table;
+		private final String tag;
+		private int capacity;
+		// Keys only get stored once they differ from the position
+		private Object[] keys;
+		// Columns are only allocated if needed
+		private Object[] values;
+		private long[] numbers;
+		private byte[] kinds;
+		private int size;
+		private boolean typedNumbers;
+		private boolean finished;
 	
 		private Builder(int size, String tag) {
-			this.table = new DeXTable(size, tag);
+			this.tag = tag;
+			this.capacity = Math.max(size, 1);
 		}
 		
-		private Builder(DeXTable table) {
-			this.table = table;
+		/**
+		 * Typed numbers keep integers ({@link Long}, {@link Integer}, {@link Short} and {@link Byte})
+		 * as long instead of coercing everything to double.
+		 */
+		public Builder typedNumbers(boolean typedNumbers) {
+			if (size > 0) throw new IllegalStateException("Can't change the number mode of a filled builder!");
+			this.typedNumbers = typedNumbers;
+			return this;
 		}
 		
 		public Builder put(Object key, Object value) {
-			if (table == null) throw new IllegalStateException("Builder finished!");
+			if (finished) throw new IllegalStateException("Builder finished!");
 			
 			// We have no key, so we assume add
 			if (key == null && value != null) return add(value);
 			// Empty values get ignored completely
 			if (value == null) return this;
 			
-			int i = table.size();
-			
-			// Coerce numbers to double for comparision
-			if (key instanceof Number) key = ((Number)key).doubleValue();
-			if (value instanceof Number) value = ((Number)value).doubleValue();
+			if (value instanceof Number) return put(key, (Number) value);
 			
-			if (table.isArray) 
-				table.isArray = key instanceof Number && ((Number)key).doubleValue() == i;
-			table.underlying.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+			append(key, Column.OBJECT, value, 0);
 			return this;
 			
 		}
 		
+		private Builder put(Object key, Number value) {
+			if (typedNumbers && (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)) 
+				return putLong(key, value.longValue());
+			return putDouble(key, value.doubleValue());
+		}
+		
+		/** Puts a number without boxing it */
+		public Builder putDouble(Object key, double value) {
+			if (finished) throw new IllegalStateException("Builder finished!");
+			append(key, Column.DOUBLE, null, Double.doubleToRawLongBits(value));
+			return this;
+		}
+		
+		/** Puts an integer without boxing it, it is stored as double unless the numbers are typed */
+		public Builder putLong(Object key, long value) {
+			if (!typedNumbers) return putDouble(key, (double) value);
+			if (finished) throw new IllegalStateException("Builder finished!");
+			append(key, Column.LONG, null, value);
+			return this;
+		}
+		
 		public Builder add(Object value) {
-			if (table == null) throw new IllegalStateException("Builder finished!");
+			if (finished) throw new IllegalStateException("Builder finished!");
 			if (value == null) 
 				throw new IllegalArgumentException("DeXTable doesn't allow null values!");
 			
-			if (value instanceof Number) value = ((Number)value).doubleValue();
-			// This has to use a double as key for comparision
-			table.underlying.add(new AbstractMap.SimpleImmutableEntry<>((double) table.size(), value));
+			if (value instanceof Number) return put(null, (Number) value);
+			append(null, Column.OBJECT, value, 0);
 			return this;
 		}
 		
+		public Builder addDouble(double value) {
+			return putDouble(null, value);
+		}
+		
+		public Builder addLong(long value) {
+			return putLong(null, value);
+		}
+		
+		/** A key of null means the position */
+		private void append(Object key, byte kind, Object value, long bits) {
+			if (size == capacity) grow();
+			
+			// Coerce numbers to double for comparision
+			if (key instanceof Number) key = ((Number)key).doubleValue();
+			if (keys == null && key != null && !(key instanceof Double && (Double) key == size)) {
+				// Not an array anymore, the previous keys were implicit
+				keys = new Object[capacity];
+				for (int i = 0; i < size; i++) keys[i] = (double) i;
+			}
+			if (keys != null) keys[size] = key != null ? key : (double) size;
+			
+			if (kind == Column.OBJECT) {
+				if (values == null) values = new Object[capacity];
+				values[size] = value;
+			} else {
+				if (numbers == null) {
+					numbers = new long[capacity];
+					kinds = new byte[capacity];
+				}
+				numbers[size] = bits;
+			}
+			if (kinds != null) kinds[size] = kind;
+			size++;
+		}
+		
+		private void grow() {
+			capacity *= 2;
+			if (keys != null) keys = Arrays.copyOf(keys, capacity);
+			if (values != null) values = Arrays.copyOf(values, capacity);
+			if (numbers != null) {
+				numbers = Arrays.copyOf(numbers, capacity);
+				kinds = Arrays.copyOf(kinds, capacity);
+			}
+		}
+		
 		public Builder addAll(Iterable<?> iterable) {
 			for (Object o : iterable) add(o);
 			return this;
@@ -123,23 +224,187 @@ public final class DeXTable extends AbstractMap<Object, Object> implements DeXIt
 			return this;
 		}
 		
+		/**
+		 * Builds the hash index and hands out the table, the builder
+		 * can't be used afterwards. If a key was put more than once
+		 * all entries are kept, lookups return the first one.
+		 */
 		public DeXTable create() {
-			DeXTable table = this.table;
-			this.table = null;
-			return table;
+			if (finished) throw new IllegalStateException("Builder finished!");
+			finished = true;
+			
+			Object[] keys = this.keys, values = this.values;
+			long[] numbers = this.numbers;
+			byte[] kinds = this.kinds;
+			this.keys = this.values = null;
+			this.numbers = null;
+			this.kinds = null;
+			
+			int count = size;
+			int[] index = null;
+			if (keys != null) {
+				index = new int[tableSizeFor(size)];
+				int mask = index.length - 1;
+				boolean isArray = true;
+				
+				for (int i = 0; i < size; i++) {
+					Object key = keys[i];
+					// Duplicates end up behind the first entry of their key, so lookups find that one
+					int slot = hash(key) & mask;
+					while (index[slot] != 0) slot = (slot + 1) & mask;
+					index[slot] = i + 1;
+					
+					if (isArray) 
+						isArray = key instanceof Double && (Double) key == i;
+				}
+				
+				if (isArray) {
+					keys = null;
+					index = null;
+				} else if (count != keys.length) keys = Arrays.copyOf(keys, count);
+			}
+			
+			Column column;
+			if (numbers == null) {
+				column = new Column.Objects(values == null ? new Object[0] : trim(values, count));
+			} else if (values == null && isHomogeneous(kinds, count)) {
+				if (kinds[0] == Column.LONG) {
+					column = new Column.Longs(numbers.length == count ? numbers : Arrays.copyOf(numbers, count));
+				} else {
+					double[] doubles = new double[count];
+					for (int i = 0; i < count; i++) doubles[i] = Double.longBitsToDouble(numbers[i]);
+					column = new Column.Doubles(doubles);
+				}
+			} else {
+				column = new Column.Mixed(
+					values == null ? new Object[count] : trim(values, count),
+					numbers.length == count ? numbers : Arrays.copyOf(numbers, count),
+					kinds.length == count ? kinds : Arrays.copyOf(kinds, count));
+			}
+			return new DeXTable(tag, keys, column, index, typedNumbers);
+		}
+		
+		private static Object[] trim(Object[] array, int length) {
+			return array.length == length ? array : Arrays.copyOf(array, length);
+		}
+		
+		private static boolean isHomogeneous(byte[] kinds, int length) {
+			for (int i = 1; i < length; i++) {
+				if (kinds[i] != kinds[0]) return false;
+			}
+			return true;
 		}
 	}
 	
+	/** Power of two with a load factor of at most 0.5 */
+	private static int tableSizeFor(int size) {
+		return Integer.highestOneBit(Math.max(size, 1) * 2 - 1) << 1;
+	}
+	
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+	
+	/** Returns the position of the given key or -1 if not present */
+	private int find(Object key) {
+		if (key == null) return -1;
+		if (keys == null) {
+			// Arrays are indexed by position
+			if (!(key instanceof Number)) return -1;
+			double d = ((Number) key).doubleValue();
+			int pos = (int) d;
+			return pos == d && pos >= 0 && pos < values.size() ? pos : -1;
+		}
+		// If this is a number we have to convert it to double
+		if (key instanceof Number && !(key instanceof Double)) key = ((Number)key).doubleValue();
+		
+		int mask = index.length - 1;
+		for (int slot = hash(key) & mask, pos; (pos = index[slot]) != 0; slot = (slot + 1) & mask) {
+			if (key.equals(keys[pos - 1])) return pos - 1;
+		}
+		return -1;
+	}
+	
+	Object key(int pos) {
+		return keys == null ? (Object) (double) pos : keys[pos];
+	}
+	
+	/** One of the kinds of {@link Column} */
+	byte kindAt(int pos) {
+		return values.kind(pos);
+	}
+	
+	Object valueAt(int pos) {
+		return values.get(pos);
+	}
+	
 	@Override
 	public int size() {
-		return underlying.size();
+		return values.size();
 	}
 
 	@Override
 	public Object get(Object key) {
-		// If this is a number we have to convert it to double
-		if (key instanceof Number) key = ((Number)key).doubleValue();
-		return super.get(key);
+		int pos = find(key);
+		return pos < 0 ? null : values.get(pos);
+	}
+	
+	@Override
+	public boolean containsKey(Object key) {
+		return find(key) >= 0;
+	}
+	
+	@Override
+	public boolean hasKey(Object key) {
+		return find(key) >= 0;
+	}
+
+	@Override
+	public double getDouble(Object key, double def) {
+		int pos = find(key);
+		if (pos < 0) return def;
+		return doubleAt(pos);
+	}
+	
+	@Override
+	public double getDouble(Object key) {
+		int pos = find(key);
+		if (pos < 0) throw new NullPointerException();
+		return doubleAt(pos);
+	}
+	
+	double doubleAt(int pos) {
+		if (values.kind(pos) != Column.OBJECT) return values.getDouble(pos);
+		Object o = values.get(pos);
+		if (o instanceof Number) return ((Number) o).doubleValue();
+		throw new ArithmeticException("Table can't be converted to number!");
+	}
+	
+	@Override
+	public long getLong(Object key, long def) {
+		int pos = find(key);
+		if (pos < 0) return def;
+		return longAt(pos);
+	}
+	
+	@Override
+	public long getLong(Object key) {
+		int pos = find(key);
+		if (pos < 0) throw new NullPointerException();
+		return longAt(pos);
+	}
+	
+	long longAt(int pos) {
+		if (values.kind(pos) == Column.LONG) return values.getLong(pos);
+		double d = doubleAt(pos);
+		if (d % 1 == 0) return (long) d;
+		else throw new ArithmeticException("Double can't be converted to integer without loss!");
+	}
+	
+	/** True if this table was built with {@link Builder#typedNumbers(boolean)} */
+	public boolean hasTypedNumbers() {
+		return typedNumbers;
 	}
 
 	@Override
@@ -154,13 +419,59 @@ public final class DeXTable extends AbstractMap<Object, Object> implements DeXIt
 	
 	@Override
 	public Set<Entry<Object, Object>> entrySet() {
-		return underlying;
+		return entrySet;
+	}
+	
+	/** Immutable view on the entries, they get created while iterating */
+	private final class EntrySet extends AbstractSet<Entry<Object, Object>> {
+
+		@Override
+		public Iterator<Entry<Object, Object>> iterator() {
+			return new Iterator<Entry<Object, Object>>() {
+				int i = 0;
+				
+				@Override
+				public boolean hasNext() {
+					return i < values.size();
+				}
+
+				@Override
+				public Entry<Object, Object> next() {
+					if (i >= values.size()) throw new NoSuchElementException();
+					Entry<Object, Object> entry = new AbstractMap.SimpleImmutableEntry<>(key(i), values.get(i));
+					i++;
+					return entry;
+				}
+			};
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof Entry)) return false;
+			Entry<?, ?> entry = (Entry<?, ?>) o;
+			Object key = entry.getKey();
+			int pos = find(key);
+			if (pos < 0) return false;
+			if (values.get(pos).equals(entry.getValue())) return true;
+			if (keys == null) return false;
+			
+			// Later entries of the same key
+			if (key instanceof Number) key = ((Number) key).doubleValue();
+			int mask = index.length - 1;
+			for (int slot = hash(key) & mask; (pos = index[slot]) != 0; slot = (slot + 1) & mask) {
+				if (key.equals(keys[pos - 1]) && values.get(pos - 1).equals(entry.getValue())) return true;
+			}
+			return false;
+		}
+
+		@Override
+		public int size() {
+			return values.size();
+		}
 	}
 
 	@Override
 	public DeXArray values() {
-		if (array == null)
-			array = new DeXArray(this, super.values());
 		return array;
 	}
 	
@@ -174,7 +485,7 @@ public final class DeXTable extends AbstractMap<Object, Object> implements DeXIt
 	 * @return
 	 */
 	public boolean isArray() {
-		return isArray;
+		return keys == null;
 	}
 	
 	/** This is just for convenience concerning the naming... */
@@ -189,7 +500,10 @@ public final class DeXTable extends AbstractMap<Object, Object> implements DeXIt
 			if (!Objects.equals(tag(), di.tag())) 
 				return false;
 		}
-		return super.equals(o);
+		// Compares the entries, so that the later entries of a duplicate key count as well
+		if (o == this) return true;
+		if (!(o instanceof Map)) return false;
+		return entrySet.equals(((Map<?, ?>) o).entrySet());
 	}
 
 	public <T> T compose(Class<T> target, Serialization sel) {
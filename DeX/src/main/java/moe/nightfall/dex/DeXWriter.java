@@ -0,0 +1,304 @@
+package moe.nightfall.dex;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Map.Entry;
+
+/**
+ * Prints DeX to an {@link Appendable} as it goes, the output is the same as
+ * {@link DeX#print(DeXTable)} and {@link DeX#prettyPrint(DeXTable)}.
+ *
+ * Text is collected in a fixed size buffer and handed to the target once it is full,
+ * call {@link #flush()} when done. Tables can either be written as a whole or
+ * entry by entry with {@link #startTable(String, boolean)}, {@link #key(Object)},
+ * {@link #value(Object)} and {@link #endTable()}.
+ *
+ * @author Vic
+ */
+public final class DeXWriter implements Flushable {
+
+	static final int BUFFER_SIZE = 4096;
+
+	// Classes of chars in strings, anything above 127 is plain
+	private static final byte SPECIAL = 1;
+	private static final byte ESCAPE = 2;
+	private static final byte[] CLASSES = new byte[128];
+	/** The char after the backslash */
+	private static final char[] ESCAPES = new char[128];
+
+	static {
+		// These only need quotes
+		for (char c : "{}:,".toCharArray()) CLASSES[c] = SPECIAL;
+		String escaped = "\"\\\t\n\r\f\b";
+		String replacement = "\"\\tnrfb";
+		for (int i = 0; i < escaped.length(); i++) {
+			CLASSES[escaped.charAt(i)] = ESCAPE;
+			ESCAPES[escaped.charAt(i)] = replacement.charAt(i);
+		}
+	}
+
+	private final Appendable out;
+	private final boolean pretty;
+
+	private final char[] buffer = new char[BUFFER_SIZE];
+	private int pos;
+
+	// State of every open table
+	private int depth = 0;
+	private boolean[] array = new boolean[16];
+	private boolean[] first = new boolean[16];
+	// True if the table is used as a key
+	private boolean[] isKey = new boolean[16];
+	// True if the current entry already has a key
+	private boolean hasKey;
+
+	public DeXWriter(Appendable out, boolean pretty) {
+		this.out = out;
+		this.pretty = pretty;
+	}
+
+	/** Writes the table and everything in it */
+	public DeXWriter write(DeXTable table) {
+		startTable(table.tag(), table.isArray());
+		for (Entry<Object, Object> entry : table.entrySet()) {
+			if (!table.isArray()) key(entry.getKey());
+			value(entry.getValue());
+		}
+		return endTable();
+	}
+
+	/**
+	 * Opens a table, it either is an array or all of its entries
+	 * need a key. Tables can be used as keys too.
+	 */
+	public DeXWriter startTable(String tag, boolean isArray) {
+		boolean key = depth > 0 && !array[depth] && !hasKey;
+		if (depth > 0) entry();
+		if (++depth == array.length) {
+			array = Arrays.copyOf(array, depth * 2);
+			first = Arrays.copyOf(first, depth * 2);
+			isKey = Arrays.copyOf(isKey, depth * 2);
+		}
+		array[depth] = isArray;
+		first[depth] = true;
+		isKey[depth] = key;
+
+		if (pretty) {
+			if (tag.length() > 0) {
+				scalar(tag);
+				append(" { ");
+			} else append("{ ");
+			if (!isArray) append('\n');
+		} else {
+			if (tag.length() > 0) scalar(tag);
+			append('{');
+		}
+		return this;
+	}
+
+	public DeXWriter key(Object key) {
+		if (depth == 0 || array[depth]) throw new IllegalStateException("Arrays don't have keys!");
+		if (hasKey) throw new IllegalStateException("Entry already has a key!");
+
+		if (key instanceof DeXTable) write((DeXTable) key);
+		else {
+			entry();
+			scalar(key);
+			separator();
+		}
+		return this;
+	}
+
+	public DeXWriter value(Object value) {
+		checkValue();
+		if (value instanceof DeXTable) write((DeXTable) value);
+		else {
+			entry();
+			scalar(value);
+			endEntry();
+		}
+		return this;
+	}
+
+	/** Writes a number without boxing, the same as a {@link Double} value */
+	public DeXWriter value(double value) {
+		checkValue();
+		entry();
+		number(value);
+		endEntry();
+		return this;
+	}
+
+	/** Writes an integer without boxing or going through double, the same as a {@link Long} value */
+	public DeXWriter value(long value) {
+		checkValue();
+		entry();
+		number(value);
+		endEntry();
+		return this;
+	}
+	
+	public DeXWriter value(boolean value) {
+		checkValue();
+		entry();
+		append(value ? "true" : "false");
+		endEntry();
+		return this;
+	}
+
+	public DeXWriter endTable() {
+		if (depth == 0) throw new IllegalStateException("No open table!");
+		if (hasKey) throw new IllegalStateException("Entry is missing a value!");
+
+		if (pretty) {
+			if (!array[depth]) indent(2 * depth - 2);
+			else append(' ');
+		}
+		append('}');
+
+		// The table itself is a key or a value of the parent
+		boolean key = isKey[depth];
+		if (--depth > 0) {
+			if (key) separator();
+			else endEntry();
+		}
+		return this;
+	}
+	
+	private void checkValue() {
+		if (depth == 0) throw new IllegalStateException("No open table!");
+		if (!array[depth] && !hasKey) throw new IllegalStateException("Entry needs a key!");
+	}
+
+	/** Between key and value */
+	private void separator() {
+		append(pretty ? " : " : ":");
+		hasKey = true;
+	}
+
+	/** Called before anything of an entry is written */
+	private void entry() {
+		// The value of an entry that already has a key
+		if (hasKey) {
+			hasKey = false;
+			return;
+		}
+		if (pretty) {
+			if (!array[depth]) indent(2 * depth);
+			if (!first[depth] && array[depth]) append(", ");
+			else first[depth] = false;
+		} else {
+			if (!first[depth]) append(',');
+			else first[depth] = false;
+		}
+	}
+
+	private void endEntry() {
+		if (pretty && !array[depth]) append('\n');
+	}
+
+	private void indent(int spaces) {
+		for (int i = 0; i < spaces; i++) append(' ');
+	}
+
+	private void scalar(Object o) {
+		if (o instanceof String) string((String) o);
+		else if (o instanceof Number) {
+			// Integers are printed as long so that they don't lose precision
+			if (DeX.isIntegral((Number) o)) number(((Number) o).longValue());
+			else number(((Number) o).doubleValue());
+		}
+		else append(o.toString());
+	}
+
+	private void string(String s) {
+		int length = s.length();
+		// Pretty printing only quotes if needed, one scan finds that and the first escape
+		boolean quote = !pretty;
+		int start = length;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c >= 128 || CLASSES[c] == 0) continue;
+			quote = true;
+			if (CLASSES[c] == ESCAPE) {
+				start = i;
+				break;
+			}
+		}
+
+		if (quote) append('"');
+		// Runs of plain chars are copied as a whole
+		int run = 0;
+		for (int i = start; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 128 && CLASSES[c] == ESCAPE) {
+				append(s, run, i);
+				if (buffer.length - pos < 2) drain();
+				buffer[pos++] = '\\';
+				buffer[pos++] = ESCAPES[c];
+				run = i + 1;
+			}
+		}
+		append(s, run, length);
+		if (quote) append('"');
+	}
+
+	/** Numbers are formatted right into the buffer */
+	private void number(double value) {
+		if (buffer.length - pos < NumberFormatter.MAX_LENGTH) drain();
+		pos = NumberFormatter.format(value, buffer, pos);
+	}
+
+	private void number(long value) {
+		if (buffer.length - pos < NumberFormatter.MAX_LENGTH) drain();
+		pos = NumberFormatter.format(value, buffer, pos);
+	}
+
+	private void append(char c) {
+		if (pos == buffer.length) drain();
+		buffer[pos++] = c;
+	}
+
+	private void append(String s) {
+		append(s, 0, s.length());
+	}
+
+	private void append(String s, int start, int end) {
+		for (int i = start; i < end;) {
+			if (pos == buffer.length) drain();
+			int n = Math.min(end - i, buffer.length - pos);
+			s.getChars(i, i + n, buffer, pos);
+			pos += n;
+			i += n;
+		}
+	}
+
+	/** Hands the buffer to the target */
+	private void drain() {
+		try {
+			if (out instanceof StringBuilder) ((StringBuilder) out).append(buffer, 0, pos);
+			else if (out instanceof Writer) ((Writer) out).write(buffer, 0, pos);
+			else out.append(CharBuffer.wrap(buffer, 0, pos));
+			pos = 0;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/** Writes out the buffer and flushes the target if it is {@link Flushable} */
+	@Override
+	public void flush() {
+		drain();
+		if (out instanceof Flushable) {
+			try {
+				((Flushable) out).flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package moe.nightfall.dex;
+
+import java.util.function.Supplier;
+
+/**
+ * A table of a lazy parse that is only built once it is used. {@link Column}
+ * resolves it on access, so it never leaves a {@link DeXTable}.
+ *
+ * The first access builds the value, threads that access it at the same
+ * time wait for it and get the same instance.
+ *
+ * @see DeXParser#lazy(boolean)
+ * @author Vic
+ */
+final class LazyValue {
+
+	/** Tag of the table, for the key of tagged tables without one */
+	final String tag;
+
+	private Supplier<Object> supplier;
+	private volatile Object value;
+
+	LazyValue(String tag, Supplier<Object> supplier) {
+		this.tag = tag;
+		this.supplier = supplier;
+	}
+
+	Object get() {
+		Object value = this.value;
+		if (value == null) {
+			synchronized (this) {
+				value = this.value;
+				if (value == null) {
+					this.value = value = supplier.get();
+					// Don't hold on to the text
+					supplier = null;
+				}
+			}
+		}
+		return value;
+	}
+
+	static Object resolve(Object o) {
+		return o instanceof LazyValue ? ((LazyValue) o).get() : o;
+	}
+}
@@ -0,0 +1,231 @@
+package moe.nightfall.dex;
+
+import java.math.BigInteger;
+
+/**
+ * Prints numbers straight into a char array, the counterpart of {@link NumberParser}.
+ *
+ * Doubles are printed with the fewest digits that still parse back to the same value,
+ * found with the Schubfach algorithm by Raffaello Giulietti. Integral values have no
+ * decimal point, very large and very small ones use an exponent. There is no state,
+ * any number of threads can use it at once.
+ *
+ * @see DeX#formatNumber(double)
+ * @author Vic
+ */
+final class NumberFormatter {
+
+	private NumberFormatter() {}
+
+	/** Chars that have to be free in the target array */
+	static final int MAX_LENGTH = 32;
+
+	// Binary64 format
+	private static final int P = 53;
+	private static final int Q_MIN = -1074;
+	private static final long C_MIN = 1L << P - 1;
+	private static final long C_TINY = 3;
+	private static final int K_MIN = -324;
+	private static final long MASK_63 = (1L << 63) - 1;
+
+	/** Numbers of 10^21 and above are printed with an exponent, just like smaller than 10^-6 */
+	private static final int MAX_PLAIN = 21;
+	private static final int MIN_PLAIN = -6;
+
+	/**
+	 * Approximations of 10^-k from k = {@link #K_MIN} to 292 with 126 bits,
+	 * the upper 63 bits followed by the lower 63 bits.
+	 */
+	private static final long[] G = new long[2 * (292 - K_MIN + 1)];
+
+	static {
+		for (int k = K_MIN; k <= 292; k++) {
+			// g = floor(10^-k * 2^-r) + 1 with r = floor(log2(10^-k)) - 125
+			int r = flog2pow10(-k) - 125;
+			BigInteger g = k <= 0 ? BigInteger.TEN.pow(-k) : BigInteger.ONE;
+			if (k > 0) g = g.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+			else g = r < 0 ? g.shiftLeft(-r) : g.shiftRight(r);
+			g = g.add(BigInteger.ONE);
+			G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+			G[2 * (k - K_MIN) + 1] = g.longValue() & MASK_63;
+		}
+	}
+
+	/** Writes the number at the given position, returns the position after it */
+	static int format(long value, char[] chars, int pos) {
+		if (value < 0) {
+			chars[pos++] = '-';
+			// Long.MIN_VALUE has no positive counterpart
+			if (value == Long.MIN_VALUE) {
+				chars[pos++] = '9';
+				value = 223372036854775808L;
+			} else value = -value;
+		}
+		return digits(value, chars, pos);
+	}
+
+	/** Writes the number at the given position, returns the position after it */
+	static int format(double value, char[] chars, int pos) {
+		long bits = Double.doubleToRawLongBits(value);
+		long t = bits & C_MIN - 1;
+		int bq = (int) (bits >>> P - 1) & 0x7FF;
+		if (bq == 0x7FF) return append(t != 0 ? "NaN" : bits < 0 ? "-Infinity" : "Infinity", chars, pos);
+
+		if (bits < 0) chars[pos++] = '-';
+		if (bq != 0) {
+			int mq = -Q_MIN + 1 - bq;
+			long c = C_MIN | t;
+			// Integers below 2^53 are exact
+			if (0 < mq && mq < P) {
+				long f = c >> mq;
+				if (f << mq == c) return digits(f, chars, pos);
+			}
+			return decimal(-mq, c, 0, chars, pos);
+		}
+		if (t == 0) {
+			// -0 would be read as 0
+			return append(bits < 0 ? "0.0" : "0", chars, pos);
+		}
+		// Subnormal
+		return t < C_TINY ? decimal(Q_MIN, 10 * t, -1, chars, pos) : decimal(Q_MIN, t, 0, chars, pos);
+	}
+
+	/** Finds the shortest decimal within the rounding interval of c * 2^q */
+	private static int decimal(int q, long c, int dk, char[] chars, int pos) {
+		int out = (int) c & 1;
+		long cb = c << 2;
+		long cbr = cb + 2;
+		long cbl;
+		int k;
+		// The interval is asymmetric at powers of two
+		if (c != C_MIN | q == Q_MIN) {
+			cbl = cb - 2;
+			k = flog10pow2(q);
+		} else {
+			cbl = cb - 1;
+			k = flog10threeQuartersPow2(q);
+		}
+		int h = q + flog2pow10(-k) + 2;
+
+		long g1 = G[2 * (k - K_MIN)];
+		long g0 = G[2 * (k - K_MIN) + 1];
+
+		long vb = rop(g1, g0, cb << h);
+		long vbl = rop(g1, g0, cbl << h);
+		long vbr = rop(g1, g0, cbr << h);
+
+		long s = vb >> 2;
+		if (s >= 100) {
+			// One digit less if possible
+			long sp10 = 10 * multiplyHigh(s, 115292150460684698L << 4);
+			long tp10 = sp10 + 10;
+			boolean upin = vbl + out <= sp10 << 2;
+			boolean wpin = (tp10 << 2) + out <= vbr;
+			if (upin != wpin) return layout(upin ? sp10 : tp10, k, chars, pos);
+		}
+		long t = s + 1;
+		boolean uin = vbl + out <= s << 2;
+		boolean win = (t << 2) + out <= vbr;
+		if (uin != win) return layout(uin ? s : t, k + dk, chars, pos);
+
+		// Both are in the interval, take the closer one
+		long cmp = vb - (s + t << 1);
+		return layout(cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t, k + dk, chars, pos);
+	}
+
+	/** Prints f * 10^e */
+	private static int layout(long f, int e, char[] chars, int pos) {
+		while (f % 10 == 0) {
+			f /= 10;
+			e++;
+		}
+		// Digits go first, they get moved into place
+		int end = digits(f, chars, pos);
+		int length = end - pos;
+		int point = length + e;
+
+		if (e >= 0 && point <= MAX_PLAIN) {
+			for (int i = 0; i < e; i++) chars[end++] = '0';
+			return end;
+		}
+		if (0 < point && point < length) {
+			System.arraycopy(chars, pos + point, chars, pos + point + 1, length - point);
+			chars[pos + point] = '.';
+			return end + 1;
+		}
+		if (MIN_PLAIN < point && point <= 0) {
+			int zeros = 2 - point;
+			System.arraycopy(chars, pos, chars, pos + zeros, length);
+			chars[pos] = '0';
+			chars[pos + 1] = '.';
+			for (int i = 2; i < zeros; i++) chars[pos + i] = '0';
+			return end + zeros;
+		}
+
+		// d.ddde-x
+		if (length > 1) {
+			System.arraycopy(chars, pos + 1, chars, pos + 2, length - 1);
+			chars[pos + 1] = '.';
+			end++;
+		}
+		chars[end++] = 'e';
+		return format((long) point - 1, chars, end);
+	}
+
+	private static int digits(long value, char[] chars, int pos) {
+		int end = pos + length(value);
+		for (int i = end - 1; i >= pos; i--) {
+			chars[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return end;
+	}
+
+	private static int length(long value) {
+		int length = 1;
+		for (long limit = 10; value >= limit && length < 19; limit *= 10) length++;
+		return length;
+	}
+
+	private static int append(String s, char[] chars, int pos) {
+		s.getChars(0, s.length(), chars, pos);
+		return pos + s.length();
+	}
+
+	/** Rounds the product to odd */
+	private static long rop(long g1, long g0, long cp) {
+		long x1 = multiplyHigh(g0, cp);
+		long y0 = g1 * cp;
+		long y1 = multiplyHigh(g1, cp);
+		long z = (y0 >>> 1) + x1;
+		long vbp = y1 + (z >>> 63);
+		return vbp | (z & MASK_63) + MASK_63 >>> 63;
+	}
+
+	/** The upper 64 bits of the 128 bit product */
+	private static long multiplyHigh(long x, long y) {
+		long x1 = x >> 32, x2 = x & 0xFFFFFFFFL;
+		long y1 = y >> 32, y2 = y & 0xFFFFFFFFL;
+		long z2 = x2 * y2;
+		long t = x1 * y2 + (z2 >>> 32);
+		long z1 = t & 0xFFFFFFFFL;
+		long z0 = t >> 32;
+		z1 += x2 * y1;
+		return x1 * y1 + z0 + (z1 >> 32);
+	}
+
+	/** floor(log10(2^e)) */
+	private static int flog10pow2(int e) {
+		return (int) (e * 661_971_961_083L >> 41);
+	}
+
+	/** floor(log10(3/4 * 2^e)) */
+	private static int flog10threeQuartersPow2(int e) {
+		return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+	}
+
+	/** floor(log2(10^e)) */
+	private static int flog2pow10(int e) {
+		return (int) (e * 913_124_641_741L >> 38);
+	}
+}
@@ -0,0 +1,176 @@
+package moe.nightfall.dex;
+
+/**
+ * Recognizes DeX numbers in a range of chars, the result is kept
+ * in this instance so that nothing has to be boxed.
+ *
+ * The text is validated by hand, anything that isn't a number is rejected
+ * without throwing. Most strings already fail on their first char.
+ * Decimal numbers can end with one of the suffixes {@code f}, {@code F},
+ * {@code d} or {@code D}, which are ignored.
+ *
+ * @see DeX#parseDeXNumber(String)
+ * @author Vic
+ */
+final class NumberParser {
+
+	/** Powers of ten that are exactly representable as double */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/** Digits that always fit into a long */
+	private static final int MAX_DIGITS = 18;
+
+	/** The result of the last successful call to {@link #parse(char[], int, int)} */
+	double value;
+	/** True if the last number was an integer that fits into a long, see {@link #longValue} */
+	boolean integral;
+	long longValue;
+
+	/** Returns true if the given chars form a number */
+	boolean parse(char[] chars, int offset, int length) {
+		if (length == 0) return false;
+		integral = false;
+		int i = offset;
+		int end = offset + length;
+
+		boolean negative = false;
+		char c = chars[i];
+		if (c == '-' || c == '+') { //+ Are generally ignored, why'd you need them anyways?
+			negative = c == '-';
+			if (++i == end) return false;
+			c = chars[i];
+		}
+
+		// Anything that doesn't start like a number isn't one
+		if (c > '9') {
+			if (c == 'N' && matches(chars, i, end, "NaN")) {
+				value = Double.NaN;
+				return true;
+			} else if (c == 'I' && matches(chars, i, end, "Infinity")) {
+				value = negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+				return true;
+			}
+			return false;
+		}
+		if (c < '0' && c != '.') return false;
+
+		// Check radix
+		if (c == '0') {
+			// This is a 0
+			if (i + 1 == end) {
+				value = 0;
+				longValue = 0;
+				integral = true;
+				return true;
+			}
+
+			switch (chars[i + 1]) {
+			case 'x': return integer(chars, i + 2, end, 16, negative);
+			case 'o': return integer(chars, i + 2, end, 8, negative);
+			case 'b': return integer(chars, i + 2, end, 2, negative);
+			}
+		}
+		return decimal(chars, offset, i, end, negative);
+	}
+
+	private static boolean matches(char[] chars, int i, int end, String s) {
+		if (end - i != s.length()) return false;
+		for (int j = 0; j < s.length(); j++) {
+			if (chars[i + j] != s.charAt(j)) return false;
+		}
+		return true;
+	}
+
+	private boolean integer(char[] chars, int i, int end, int radix, boolean negative) {
+		if (i == end) return false;
+		long number = 0;
+		for (; i < end; i++) {
+			int digit = Character.digit(chars[i], radix);
+			if (digit < 0 || number > (Long.MAX_VALUE - digit) / radix) return false;
+			number = number * radix + digit;
+		}
+		longValue = negative ? -number : number;
+		value = longValue;
+		integral = true;
+		return true;
+	}
+
+	private boolean decimal(char[] chars, int start, int i, int end, boolean negative) {
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		// True if there were more digits than the mantissa can hold
+		boolean truncated = false;
+		// Integer part, as long as there is no fraction or exponent it may become a long
+		long integer = 0;
+		boolean overflow = false;
+		
+		// Java style suffixes, like Double.parseDouble accepts them. Suffixed numbers are never integers.
+		char last = chars[end - 1];
+		boolean suffix = last == 'f' || last == 'F' || last == 'd' || last == 'D';
+		if (suffix) end--;
+
+		for (int digit; i < end && (digit = chars[i] - '0') >= 0 && digit <= 9; i++) {
+			any = true;
+			if (!overflow) {
+				if (integer > (Long.MAX_VALUE - digit) / 10) overflow = true;
+				else integer = integer * 10 + digit;
+			}
+			if (digits < MAX_DIGITS) {
+				mantissa = mantissa * 10 + digit;
+				if (mantissa != 0) digits++;
+			} else {
+				exponent++;
+				truncated = true;
+			}
+		}
+		boolean fraction = i < end && chars[i] == '.';
+		if (fraction) {
+			for (int digit; ++i < end && (digit = chars[i] - '0') >= 0 && digit <= 9;) {
+				any = true;
+				if (digits < MAX_DIGITS) {
+					mantissa = mantissa * 10 + digit;
+					if (mantissa != 0) digits++;
+					exponent--;
+				} else truncated = true;
+			}
+		}
+		if (!any) return false;
+
+		boolean exponentPart = i < end && (chars[i] == 'e' || chars[i] == 'E');
+		if (exponentPart) {
+			if (++i == end) return false;
+			boolean negativeExponent = chars[i] == '-';
+			if ((chars[i] == '-' || chars[i] == '+') && ++i == end) return false;
+
+			int e = 0;
+			for (int digit; i < end && (digit = chars[i] - '0') >= 0 && digit <= 9; i++) {
+				// Anything this large is either 0 or infinite anyways
+				if (e < 100000) e = e * 10 + digit;
+			}
+			if (i < end) return false;
+			exponent += negativeExponent ? -e : e;
+		}
+		if (i != end) return false;
+
+		if (!fraction && !exponentPart && !overflow && !suffix) {
+			longValue = negative ? -integer : integer;
+			integral = true;
+		}
+		if (!truncated && mantissa < 1L << 53 && exponent >= -22 && exponent <= 22) {
+			// Both operands are exact, so the result is correctly rounded
+			double d = mantissa;
+			if (exponent >= 0) d *= POWERS_OF_TEN[exponent];
+			else d /= POWERS_OF_TEN[-exponent];
+			value = negative ? -d : d;
+		} else {
+			// We know that this is a valid number, the slow path won't throw
+			value = Double.parseDouble(new String(chars, start, end - start));
+		}
+		return true;
+	}
+}
@@ -0,0 +1,105 @@
+package moe.nightfall.dex;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps one instance of every key and tag, documents that repeat the same names
+ * in thousands of tables then only hold each name once. Strings are looked up
+ * straight from the chars of the parser, a new one is only created on a miss.
+ *
+ * <p>The table has a maximum size, once it is full new names are no longer added
+ * and every parse creates its own strings for them. Lookups don't lock, a table
+ * can be shared between any number of parsers with {@link DeXParser#symbols(SymbolTable)}.</p>
+ *
+ * @author Vic
+ */
+public final class SymbolTable {
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	/** Slots that are looked at before giving up on a name */
+	private static final int MAX_PROBES = 8;
+
+	private final AtomicReferenceArray<String> slots;
+	private final int maxSize;
+	private final AtomicInteger size = new AtomicInteger();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public SymbolTable() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public SymbolTable(int maxSize) {
+		if (maxSize < 1) throw new IllegalArgumentException("Size has to be at least 1");
+		this.maxSize = maxSize;
+		// At most half full
+		slots = new AtomicReferenceArray<>(Integer.highestOneBit(maxSize * 2 - 1) << 1);
+	}
+
+	/** The string with the given chars, the same instance as long as it is in the table */
+	public String intern(char[] chars, int offset, int length) {
+		int hash = 0;
+		for (int i = offset; i < offset + length; i++) hash = 31 * hash + chars[i];
+		hash ^= hash >>> 16;
+
+		int mask = slots.length() - 1;
+		for (int probe = 0, slot = hash & mask; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+			String s = slots.get(slot);
+			if (s == null) {
+				String created = new String(chars, offset, length);
+				misses.increment();
+				if (size.get() >= maxSize) return created;
+				if (slots.compareAndSet(slot, null, created)) {
+					size.incrementAndGet();
+					return created;
+				}
+				// Another thread took the slot, maybe with the same name
+				s = slots.get(slot);
+				if (matches(s, chars, offset, length)) return s;
+				return created;
+			}
+			if (matches(s, chars, offset, length)) {
+				hits.increment();
+				return s;
+			}
+		}
+		misses.increment();
+		return new String(chars, offset, length);
+	}
+
+	private static boolean matches(String s, char[] chars, int offset, int length) {
+		if (s.length() != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (s.charAt(i) != chars[offset + i]) return false;
+		}
+		return true;
+	}
+
+	/** Names that are in the table */
+	public int size() {
+		return size.get();
+	}
+
+	public int maxSize() {
+		return maxSize;
+	}
+
+	/** Lookups that found their name in the table */
+	public long hits() {
+		return hits.sum();
+	}
+
+	/** Lookups that had to create a new string */
+	public long misses() {
+		return misses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "SymbolTable[size=" + size() + ", hits=" + hits() + ", misses=" + misses() + "]";
+	}
+}
@@ -0,0 +1,334 @@
+package moe.nightfall.dex.serialize;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Reads and writes a single field, created once per field of a {@link ClassSerializer}.
+ *
+ * <p>Fields get a generated class with plain field instructions if possible, see
+ * {@link AccessorGenerator}. Otherwise they are accessed through {@link MethodHandle}s.
+ * The typed getters and setters don't box, they are only valid for fields of that type.</p>
+ *
+ * @author Vic
+ */
+abstract class Accessor {
+
+	abstract Object get(Object obj);
+	abstract void set(Object obj, Object value);
+
+	abstract boolean getBoolean(Object obj);
+	abstract byte getByte(Object obj);
+	abstract char getChar(Object obj);
+	abstract short getShort(Object obj);
+	abstract int getInt(Object obj);
+	abstract long getLong(Object obj);
+	abstract float getFloat(Object obj);
+	abstract double getDouble(Object obj);
+
+	abstract void setBoolean(Object obj, boolean value);
+	abstract void setByte(Object obj, byte value);
+	abstract void setChar(Object obj, char value);
+	abstract void setShort(Object obj, short value);
+	abstract void setInt(Object obj, int value);
+	abstract void setLong(Object obj, long value);
+	abstract void setFloat(Object obj, float value);
+	abstract void setDouble(Object obj, double value);
+
+	/** Picks the fastest accessor available for the field, which has to be accessible */
+	static Accessor of(Field field) throws IllegalAccessException {
+		if (AccessorGenerator.supports(field)) {
+			try {
+				return new Generated(AccessorGenerator.generate(field));
+			} catch (Throwable t) {
+				// The package isn't open to us
+			}
+		}
+		return handles(field);
+	}
+	
+	static Accessor handles(Field field) throws IllegalAccessException {
+		return new Handles(MethodHandles.lookup(), field);
+	}
+
+	/**
+	 * Creates instances through a lambda that calls the constructor, if the class and its
+	 * constructor are public. Otherwise it has to go through a {@link MethodHandle}.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Supplier<T> constructor(Constructor<T> ctr) throws IllegalAccessException {
+		Lookup lookup = MethodHandles.lookup();
+		MethodHandle handle = lookup.unreflectConstructor(ctr);
+
+		Class<T> clazz = ctr.getDeclaringClass();
+		if (Modifier.isPublic(clazz.getModifiers()) && Modifier.isPublic(ctr.getModifiers())) {
+			try {
+				CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+					MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+					handle, MethodType.methodType(clazz));
+				return (Supplier<T>) site.getTarget().invokeExact();
+			} catch (Throwable t) {
+				// The class isn't visible from here
+			}
+		}
+		MethodHandle generic = handle.asType(MethodType.methodType(Object.class));
+		return () -> {
+			try {
+				return (T) generic.invokeExact();
+			} catch (Throwable t) {
+				throw new RuntimeException("Can't create instance of " + clazz, t);
+			}
+		};
+	}
+
+	private static RuntimeException rethrow(Throwable t) {
+		if (t instanceof RuntimeException) return (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		return new RuntimeException(t);
+	}
+
+	/** Goes through method handles that are adapted to the exact type of the field */
+	static final class Handles extends Accessor {
+		
+		private final MethodHandle getter, setter;
+		private final MethodHandle typedGetter, typedSetter;
+		
+		private Handles(Lookup lookup, Field field) throws IllegalAccessException {
+			Class<?> type = field.getType();
+			MethodHandle getter = lookup.unreflectGetter(field);
+			MethodHandle setter = lookup.unreflectSetter(field);
+			
+			this.getter = getter.asType(MethodType.methodType(Object.class, Object.class));
+			this.setter = setter.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			this.typedGetter = getter.asType(MethodType.methodType(type, Object.class));
+			this.typedSetter = setter.asType(MethodType.methodType(void.class, Object.class, type));
+		}
+
+		@Override
+		Object get(Object obj) {
+			try {
+				return (Object) getter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void set(Object obj, Object value) {
+			try {
+				setter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		boolean getBoolean(Object obj) {
+			try {
+				return (boolean) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		byte getByte(Object obj) {
+			try {
+				return (byte) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		char getChar(Object obj) {
+			try {
+				return (char) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		short getShort(Object obj) {
+			try {
+				return (short) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		int getInt(Object obj) {
+			try {
+				return (int) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		long getLong(Object obj) {
+			try {
+				return (long) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		float getFloat(Object obj) {
+			try {
+				return (float) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		double getDouble(Object obj) {
+			try {
+				return (double) typedGetter.invokeExact(obj);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void setBoolean(Object obj, boolean value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void setByte(Object obj, byte value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void setChar(Object obj, char value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void setShort(Object obj, short value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+		
+		@Override
+		void setInt(Object obj, int value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void setLong(Object obj, long value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void setFloat(Object obj, float value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+
+		@Override
+		void setDouble(Object obj, double value) {
+			try {
+				typedSetter.invokeExact(obj, value);
+			} catch (Throwable t) {
+				throw rethrow(t);
+			}
+		}
+	}
+
+	/**
+	 * Calls the class generated for the field, see {@link AccessorGenerator}. Only the
+	 * typed functions that fit the type of the field are implemented, the others are null.
+	 */
+	@SuppressWarnings("unchecked")
+	static final class Generated extends Accessor {
+		
+		private final Function<Object, Object> getter;
+		private final BiConsumer<Object, Object> setter;
+		private final ToIntFunction<Object> intGetter;
+		private final ObjIntConsumer<Object> intSetter;
+		private final ToLongFunction<Object> longGetter;
+		private final ObjLongConsumer<Object> longSetter;
+		private final ToDoubleFunction<Object> doubleGetter;
+		private final ObjDoubleConsumer<Object> doubleSetter;
+		
+		private Generated(Object access) {
+			this.getter = (Function<Object, Object>) access;
+			this.setter = (BiConsumer<Object, Object>) access;
+			this.intGetter = access instanceof ToIntFunction ? (ToIntFunction<Object>) access : null;
+			this.intSetter = access instanceof ObjIntConsumer ? (ObjIntConsumer<Object>) access : null;
+			this.longGetter = access instanceof ToLongFunction ? (ToLongFunction<Object>) access : null;
+			this.longSetter = access instanceof ObjLongConsumer ? (ObjLongConsumer<Object>) access : null;
+			this.doubleGetter = access instanceof ToDoubleFunction ? (ToDoubleFunction<Object>) access : null;
+			this.doubleSetter = access instanceof ObjDoubleConsumer ? (ObjDoubleConsumer<Object>) access : null;
+		}
+		
+		@Override Object get(Object obj) { return getter.apply(obj); }
+		@Override void set(Object obj, Object value) { setter.accept(obj, value); }
+		
+		@Override boolean getBoolean(Object obj) { return intGetter.applyAsInt(obj) != 0; }
+		@Override byte getByte(Object obj) { return (byte) intGetter.applyAsInt(obj); }
+		@Override char getChar(Object obj) { return (char) intGetter.applyAsInt(obj); }
+		@Override short getShort(Object obj) { return (short) intGetter.applyAsInt(obj); }
+		@Override int getInt(Object obj) { return intGetter.applyAsInt(obj); }
+		@Override long getLong(Object obj) { return longGetter.applyAsLong(obj); }
+		@Override float getFloat(Object obj) { return (float) doubleGetter.applyAsDouble(obj); }
+		@Override double getDouble(Object obj) { return doubleGetter.applyAsDouble(obj); }
+		
+		@Override void setBoolean(Object obj, boolean value) { intSetter.accept(obj, value ? 1 : 0); }
+		@Override void setByte(Object obj, byte value) { intSetter.accept(obj, value); }
+		@Override void setChar(Object obj, char value) { intSetter.accept(obj, value); }
+		@Override void setShort(Object obj, short value) { intSetter.accept(obj, value); }
+		@Override void setInt(Object obj, int value) { intSetter.accept(obj, value); }
+		@Override void setLong(Object obj, long value) { longSetter.accept(obj, value); }
+		@Override void setFloat(Object obj, float value) { doubleSetter.accept(obj, value); }
+		@Override void setDouble(Object obj, double value) { doubleSetter.accept(obj, value); }
+	}
+}
@@ -0,0 +1,387 @@
+package moe.nightfall.dex.serialize;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates the bytecode of a class that reads and writes a single field with plain
+ * {@code getfield} and {@code putfield} instructions. The class is defined as hidden
+ * nestmate of the class that declares the field, so it can access private fields as well.
+ *
+ * <p>It implements the functional interfaces of {@link java.util.function}, a {@code Function}
+ * and {@code BiConsumer} for boxed access and a pair of the typed ones for primitive fields:</p>
+ * <ul>
+ * <li>{@code ToIntFunction} and {@code ObjIntConsumer} for boolean, byte, char, short and int</li>
+ * <li>{@code ToLongFunction} and {@code ObjLongConsumer} for long</li>
+ * <li>{@code ToDoubleFunction} and {@code ObjDoubleConsumer} for float and double</li>
+ * </ul>
+ *
+ * Hidden classes need Java 15, the API is looked up reflectively. On older versions
+ * {@link #isAvailable()} is false and {@link Accessor} uses method handles instead.
+ * Final fields can only be written by their own class, they aren't supported.
+ *
+ * @author Vic
+ */
+final class AccessorGenerator {
+	
+	private static final MethodHandle PRIVATE_LOOKUP_IN;
+	private static final MethodHandle DEFINE_HIDDEN_CLASS;
+	private static final Object NESTMATE;
+	
+	static {
+		MethodHandle privateLookupIn = null, defineHiddenClass = null;
+		Object nestmate = null;
+		try {
+			Lookup lookup = MethodHandles.publicLookup();
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			privateLookupIn = lookup.findStatic(MethodHandles.class, "privateLookupIn",
+				MethodType.methodType(Lookup.class, Class.class, Lookup.class));
+			defineHiddenClass = lookup.findVirtual(Lookup.class, "defineHiddenClass",
+				MethodType.methodType(Lookup.class, byte[].class, boolean.class, Array.newInstance(option, 0).getClass())).asFixedArity();
+			nestmate = Array.newInstance(option, 1);
+			Array.set(nestmate, 0, option.getField("NESTMATE").get(null));
+		} catch (Throwable t) {
+			// Before Java 15
+			privateLookupIn = defineHiddenClass = null;
+		}
+		PRIVATE_LOOKUP_IN = privateLookupIn;
+		DEFINE_HIDDEN_CLASS = defineHiddenClass;
+		NESTMATE = nestmate;
+	}
+	
+	private static final int VERSION = 52;
+	
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+	
+	// Opcodes
+	private static final int ALOAD_0 = 0x2A, ALOAD_1 = 0x2B, ALOAD_2 = 0x2C;
+	private static final int ILOAD_2 = 0x1C, LLOAD_2 = 0x20, DLOAD_2 = 0x28;
+	private static final int ICONST_1 = 0x04, IAND = 0x7E;
+	private static final int I2B = 0x91, I2C = 0x92, I2S = 0x93, F2D = 0x8D, D2F = 0x90;
+	private static final int IRETURN = 0xAC, LRETURN = 0xAD, DRETURN = 0xAF, ARETURN = 0xB0, RETURN = 0xB1;
+	private static final int GETFIELD = 0xB4, PUTFIELD = 0xB5;
+	private static final int INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8;
+	private static final int CHECKCAST = 0xC0;
+	
+	/** Constant pool tags */
+	private static final int UTF8 = 1, CLASS = 7, FIELDREF = 9, METHODREF = 10, NAME_AND_TYPE = 12;
+	
+	private AccessorGenerator() {}
+	
+	static boolean isAvailable() {
+		return DEFINE_HIDDEN_CLASS != null;
+	}
+	
+	/** True if the field can get a generated accessor */
+	static boolean supports(Field field) {
+		int modifiers = field.getModifiers();
+		return isAvailable() && !Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers)
+			&& isVisible(field.getType(), field.getDeclaringClass());
+	}
+	
+	/**
+	 * The generated class casts to the type of the field, so the type has to be visible
+	 * from the package of the owner. Nested classes that aren't public only are if they
+	 * are in the same package.
+	 */
+	private static boolean isVisible(Class<?> type, Class<?> owner) {
+		while (type.isArray()) type = type.getComponentType();
+		if (type.isPrimitive() || Modifier.isPublic(type.getModifiers())) return true;
+		return type.getClassLoader() == owner.getClassLoader() && packageOf(type).equals(packageOf(owner));
+	}
+	
+	private static String packageOf(Class<?> clazz) {
+		String name = clazz.getName();
+		return name.substring(0, Math.max(name.lastIndexOf('.'), 0));
+	}
+	
+	/**
+	 * Defines the class for the field and returns an instance of it. It throws if the
+	 * class can't be defined, for example because the package isn't open to this module.
+	 */
+	static Object generate(Field field) throws Throwable {
+		Class<?> owner = field.getDeclaringClass();
+		Lookup lookup = (Lookup) PRIVATE_LOOKUP_IN.invoke(owner, MethodHandles.lookup());
+		byte[] bytes = new AccessorGenerator.Writer(field).toBytes();
+		Lookup hidden = (Lookup) DEFINE_HIDDEN_CLASS.invoke(lookup, bytes, true, NESTMATE);
+		return hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+	}
+	
+	static String internalName(Class<?> clazz) {
+		return clazz.getName().replace('.', '/');
+	}
+	
+	static String descriptor(Class<?> clazz) {
+		if (clazz.isArray()) return internalName(clazz);
+		if (!clazz.isPrimitive()) return "L" + internalName(clazz) + ";";
+		if (clazz == boolean.class) return "Z";
+		if (clazz == byte.class) return "B";
+		if (clazz == char.class) return "C";
+		if (clazz == short.class) return "S";
+		if (clazz == int.class) return "I";
+		if (clazz == long.class) return "J";
+		if (clazz == float.class) return "F";
+		if (clazz == double.class) return "D";
+		throw new IllegalArgumentException(clazz.toString());
+	}
+	
+	/** Wrapper of a primitive type */
+	private static Class<?> wrapper(Class<?> type) {
+		return MethodType.methodType(type).wrap().returnType();
+	}
+	
+	private static final class Writer {
+		
+		private final Field field;
+		private final Class<?> type;
+		private final String owner;
+		private final String name;
+		
+		private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		private final DataOutputStream constants = new DataOutputStream(pool);
+		private final Map<String, Integer> entries = new HashMap<>();
+		private int count = 1;
+		
+		Writer(Field field) {
+			this.field = field;
+			this.type = field.getType();
+			this.owner = internalName(field.getDeclaringClass());
+			// Hidden classes have to be in the package of the lookup class
+			this.name = owner + "$DeXAccessor";
+		}
+		
+		byte[] toBytes() throws IOException {
+			ByteArrayOutputStream methods = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(methods);
+			int methodCount = 0;
+			
+			String[] interfaces;
+			String typed = null, typedGetter = null;
+			if (type == long.class) {
+				interfaces = new String[] { "java/util/function/ToLongFunction", "java/util/function/ObjLongConsumer" };
+				typedGetter = "applyAsLong";
+				typed = "J";
+			} else if (type == float.class || type == double.class) {
+				interfaces = new String[] { "java/util/function/ToDoubleFunction", "java/util/function/ObjDoubleConsumer" };
+				typedGetter = "applyAsDouble";
+				typed = "D";
+			} else if (type.isPrimitive()) {
+				interfaces = new String[] { "java/util/function/ToIntFunction", "java/util/function/ObjIntConsumer" };
+				typedGetter = "applyAsInt";
+				typed = "I";
+			} else interfaces = new String[0];
+			
+			// Constructor
+			methodCount++;
+			method(out, "<init>", "()V", 1, 1, code -> {
+				code.write(ALOAD_0);
+				code.write(INVOKESPECIAL);
+				code.writeShort(methodRef("java/lang/Object", "<init>", "()V"));
+				code.write(RETURN);
+			});
+			
+			// Boxed getter and setter
+			methodCount++;
+			method(out, "apply", "(Ljava/lang/Object;)Ljava/lang/Object;", 2, 2, code -> {
+				getField(code);
+				if (type.isPrimitive()) {
+					String wrapper = internalName(wrapper(type));
+					code.write(INVOKESTATIC);
+					code.writeShort(methodRef(wrapper, "valueOf", "(" + descriptor(type) + ")L" + wrapper + ";"));
+				}
+				code.write(ARETURN);
+			});
+			methodCount++;
+			method(out, "accept", "(Ljava/lang/Object;Ljava/lang/Object;)V", 3, 3, code -> {
+				receiver(code);
+				code.write(ALOAD_2);
+				if (type.isPrimitive()) {
+					String wrapper = internalName(wrapper(type));
+					code.write(CHECKCAST);
+					code.writeShort(classRef(wrapper));
+					code.write(INVOKEVIRTUAL);
+					code.writeShort(methodRef(wrapper, type.getName() + "Value", "()" + descriptor(type)));
+				} else if (type != Object.class) {
+					code.write(CHECKCAST);
+					code.writeShort(classRef(internalName(type)));
+				}
+				putField(code);
+			});
+			
+			if (typed != null) {
+				String kind = typed;
+				methodCount++;
+				method(out, typedGetter, "(Ljava/lang/Object;)" + kind, 2, 2, code -> {
+					getField(code);
+					if (type == float.class) code.write(F2D);
+					code.write(kind.equals("J") ? LRETURN : kind.equals("D") ? DRETURN : IRETURN);
+				});
+				methodCount++;
+				method(out, "accept", "(Ljava/lang/Object;" + kind + ")V", 3, 4, code -> {
+					receiver(code);
+					if (kind.equals("J")) code.write(LLOAD_2);
+					else if (kind.equals("D")) {
+						code.write(DLOAD_2);
+						if (type == float.class) code.write(D2F);
+					} else {
+						code.write(ILOAD_2);
+						if (type == boolean.class) {
+							code.write(ICONST_1);
+							code.write(IAND);
+						}
+						else if (type == byte.class) code.write(I2B);
+						else if (type == char.class) code.write(I2C);
+						else if (type == short.class) code.write(I2S);
+					}
+					putField(code);
+				});
+			}
+			
+			// Everything is in the pool now
+			int thisClass = classRef(name);
+			int superClass = classRef("java/lang/Object");
+			int[] interfaceRefs = new int[interfaces.length + 2];
+			interfaceRefs[0] = classRef("java/util/function/Function");
+			interfaceRefs[1] = classRef("java/util/function/BiConsumer");
+			for (int i = 0; i < interfaces.length; i++) interfaceRefs[i + 2] = classRef(interfaces[i]);
+			constants.flush();
+			
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream file = new DataOutputStream(bytes);
+			file.writeInt(0xCAFEBABE);
+			file.writeShort(0);
+			file.writeShort(VERSION);
+			file.writeShort(count);
+			pool.writeTo(file);
+			file.writeShort(ACC_FINAL | ACC_SUPER);
+			file.writeShort(thisClass);
+			file.writeShort(superClass);
+			file.writeShort(interfaceRefs.length);
+			for (int ref : interfaceRefs) file.writeShort(ref);
+			// No fields
+			file.writeShort(0);
+			file.writeShort(methodCount);
+			methods.writeTo(file);
+			// No attributes
+			file.writeShort(0);
+			file.flush();
+			return bytes.toByteArray();
+		}
+		
+		/** Pushes the object, cast to the owner of the field */
+		private void receiver(DataOutputStream code) throws IOException {
+			code.write(ALOAD_1);
+			code.write(CHECKCAST);
+			code.writeShort(classRef(owner));
+		}
+		
+		private void getField(DataOutputStream code) throws IOException {
+			receiver(code);
+			code.write(GETFIELD);
+			code.writeShort(fieldRef());
+		}
+		
+		/** Writes the value on the stack to the field and returns */
+		private void putField(DataOutputStream code) throws IOException {
+			code.write(PUTFIELD);
+			code.writeShort(fieldRef());
+			code.write(RETURN);
+		}
+		
+		private interface Body {
+			void write(DataOutputStream code) throws IOException;
+		}
+		
+		private void method(DataOutputStream out, String name, String descriptor, int maxStack, int maxLocals, Body body) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			body.write(new DataOutputStream(bytes));
+			
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			// The Code attribute
+			out.writeShort(1);
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + bytes.size());
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+			// No exception table and attributes
+			out.writeShort(0);
+			out.writeShort(0);
+		}
+		
+		private int fieldRef() throws IOException {
+			return ref(FIELDREF, owner, field.getName(), descriptor(type));
+		}
+		
+		private int methodRef(String owner, String name, String descriptor) throws IOException {
+			return ref(METHODREF, owner, name, descriptor);
+		}
+		
+		private int ref(int tag, String owner, String name, String descriptor) throws IOException {
+			String key = tag + " " + owner + " " + name + " " + descriptor;
+			Integer index = entries.get(key);
+			if (index != null) return index;
+			
+			int classRef = classRef(owner);
+			int nameAndType = nameAndType(name, descriptor);
+			constants.writeByte(tag);
+			constants.writeShort(classRef);
+			constants.writeShort(nameAndType);
+			return add(key);
+		}
+		
+		private int nameAndType(String name, String descriptor) throws IOException {
+			String key = NAME_AND_TYPE + " " + name + " " + descriptor;
+			Integer index = entries.get(key);
+			if (index != null) return index;
+			
+			int nameRef = utf8(name);
+			int descriptorRef = utf8(descriptor);
+			constants.writeByte(NAME_AND_TYPE);
+			constants.writeShort(nameRef);
+			constants.writeShort(descriptorRef);
+			return add(key);
+		}
+		
+		private int classRef(String name) throws IOException {
+			String key = CLASS + " " + name;
+			Integer index = entries.get(key);
+			if (index != null) return index;
+			
+			int nameRef = utf8(name);
+			constants.writeByte(CLASS);
+			constants.writeShort(nameRef);
+			return add(key);
+		}
+		
+		private int utf8(String value) throws IOException {
+			String key = UTF8 + " " + value;
+			Integer index = entries.get(key);
+			if (index != null) return index;
+			
+			constants.writeByte(UTF8);
+			constants.writeUTF(value);
+			return add(key);
+		}
+		
+		private int add(String key) {
+			entries.put(key, count);
+			return count++;
+		}
+	}
+}
@@ -1,65 +1,80 @@
 package moe.nightfall.dex.serialize;
 
-import java.lang.invoke.MethodHandle;
-import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodHandles.Lookup;
-import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import moe.nightfall.dex.DeX;
+import moe.nightfall.dex.DeXArray;
+import moe.nightfall.dex.DeXParser;
+import moe.nightfall.dex.DeXReader;
+import moe.nightfall.dex.DeXReader.Event;
+import moe.nightfall.dex.DeXReader.Type;
 import moe.nightfall.dex.DeXTable;
+import moe.nightfall.dex.DeXWriter;
 import moe.nightfall.dex.serialize.DeXSerializable.Serializer;
 
-// TODO Use java 8 lambdas for faster execution speed?
 public class ClassSerializer<T> implements Serializer<T> {
 	
-	protected List<FieldCache> fields = new LinkedList<>();
+	protected final FieldCache[] fields;
+	// Lookup by key for binding, shadowed fields lose just like in a table
+	private final Map<String, FieldCache> fieldsByName = new HashMap<>();
 	
 	/**
 	 * Field cache, used instead of reflection
 	 */
-	protected class FieldCache {
+	protected static class FieldCache {
 		final String name;
-		final MethodHandle getter;
-		final MethodHandle setter;
+		final Accessor accessor;
+		final FieldCodec codec;
 		final Class<?> type;
+		final int index;
 		
-		FieldCache(String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+		FieldCache(String name, Class<?> type, Accessor accessor, int index) {
 			this.name = name;
-			this.getter = getter;
-			this.setter = setter;
+			this.accessor = accessor;
+			this.codec = FieldCodec.of(accessor, type);
 			this.type = type;
+			this.index = index;
 		}
 	}
 	
 	protected final Class<T> clazz;
-	protected MethodHandle ctr;
+	protected final Supplier<T> ctr;
+	
+	// Shadowed fields share a name, the table decides which one is kept
+	private boolean uniqueNames = true;
 	
 	ClassSerializer(Class<T> clazz) {
-		Lookup lookup = MethodHandles.lookup();
-		
 		this.clazz = clazz;
 		try {
 			Constructor<T> ctr = clazz.getDeclaredConstructor();
 			ctr.setAccessible(true);
-			this.ctr = lookup.unreflectConstructor(ctr);
+			this.ctr = Accessor.constructor(ctr);
 		} catch (Exception e) {
 			throw new RuntimeException("Can't serialize class " + clazz + ", no empty constructor found.");
 		}
 		
 		try {
 			List<Field> reflectedFields = genFields();
-			for (Field f : reflectedFields) {
-				MethodHandle getter = lookup.unreflectGetter(f).asType(MethodType.methodType(Object.class, Object.class));
-				MethodHandle setter = lookup.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, Object.class));
-				fields.add(new FieldCache(f.getName(), f.getType(), getter, setter));
+			fields = new FieldCache[reflectedFields.size()];
+			for (int i = 0; i < fields.length; i++) {
+				Field f = reflectedFields.get(i);
+				FieldCache field = new FieldCache(f.getName(), f.getType(), Accessor.of(f), i);
+				fields[i] = field;
+				fieldsByName.putIfAbsent(field.name, field);
 			}
+			uniqueNames = reflectedFields.stream().map(Field::getName).distinct().count() == reflectedFields.size();
 		} catch (IllegalAccessException e) {
 			throw new RuntimeException("Can't serialize class " + clazz, e);
 		}
@@ -91,10 +106,10 @@ public class ClassSerializer<T> implements Serializer<T> {
 	}
 	
 	private DeXTable rawSerialize(T obj, Serialization sel) {
-		DeXTable.Builder builder = DeXTable.builder(sel.tagFor(clazz), fields.size());
+		DeXTable.Builder builder = DeXTable.builder(sel.tagFor(clazz), fields.length);
 		for (FieldCache field : fields) {
 			try {
-				builder.put(field.name, DeX.decompose(field.getter.invokeExact(obj), sel));
+				field.codec.put(obj, field.name, builder, sel);
 			} catch (Throwable t) {
 				throw new RuntimeException("Error while trying to serialize Object: ", t);
 			}
@@ -107,11 +122,36 @@ public class ClassSerializer<T> implements Serializer<T> {
 		return rawSerialize(obj, map);
 	}
 	
+	/** Writes the fields directly, null fields are skipped just like in the table */
+	@Override
+	public void write(T obj, DeXWriter out, Serialization sel) {
+		if (!uniqueNames) {
+			out.write(rawSerialize(obj, sel));
+			return;
+		}
+		try {
+			int i = 0;
+			while (i < fields.length && !fields[i].codec.isPresent(obj)) i++;
+			
+			// A table without entries is an array
+			out.startTable(sel.tagFor(clazz), i == fields.length);
+			for (; i < fields.length; i++) {
+				FieldCache field = fields[i];
+				if (!field.codec.isPresent(obj)) continue;
+				out.key(field.name);
+				field.codec.write(obj, out, sel);
+			}
+			out.endTable();
+		} catch (Throwable t) {
+			throw new RuntimeException("Error while trying to serialize Object: ", t);
+		}
+	}
+	
 	public T rawDeserialize(DeXTable table, Serialization sel) {
 		try {
-			T obj = (T) ctr.invoke();
+			T obj = ctr.get();
 			for (FieldCache field : fields) {
-				field.setter.invokeExact(obj, DeX.compose(field.type, table.get(field.name), sel));
+				field.codec.set(obj, table.get(field.name), sel);
 			}
 			return obj;
 		} catch (Throwable t) {
@@ -123,4 +163,128 @@ public class ClassSerializer<T> implements Serializer<T> {
 	public T deserialize(DeXTable table, Serialization sel) {
 		return rawDeserialize(table, sel);
 	}
+	
+	/** False if the table has to be passed to a custom deserializer */
+	boolean canBind() {
+		return true;
+	}
+	
+	/** 
+	 * True if tables can be bound to the given class while parsing, instead of
+	 * building them first. This is the case for any class that would be
+	 * deserialized by a {@link ClassSerializer}.
+	 */
+	public static boolean canBind(Class<?> type, Serialization sel) {
+		if (type.isPrimitive() || type.isArray() || type.isInterface() || type.isEnum()
+			|| Modifier.isAbstract(type.getModifiers())) return false;
+		// These are handled by DeX.compose
+		if (type.isAssignableFrom(HashMap.class) || type.isAssignableFrom(ArrayList.class)
+			|| type.isAssignableFrom(LinkedList.class) || type.isAssignableFrom(HashSet.class)
+			|| type == String.class || type == Boolean.class || type == Character.class || Number.class.isAssignableFrom(type)
+			|| type == DeXTable.class || type == DeXArray.class) return false;
+		
+		Serializer<?> ser = sel.forClass(type);
+		return ser instanceof ClassSerializer && ((ClassSerializer<?>) ser).canBind();
+	}
+	
+	/**
+	 * Reads the table the reader was started on into an object of the given class, 
+	 * fields are set as their keys arrive. Keys without a field are skipped.
+	 * 
+	 * <p>Tagged tables are routed through {@link Serialization#forTag(String)}. Those and any other tables
+	 * that can't be bound are built with the given function and composed just like 
+	 * {@link DeX#compose(Class, Object, Serialization)} would do.</p>
+	 */
+	public static Object bind(Class<?> type, DeXReader reader, Serialization sel, Function<DeXReader, DeXTable> tables) {
+		String tag = reader.tag();
+		if (!(tag.length() > 0 && sel.forTag(tag) != null) && canBind(type, sel)) {
+			return ((ClassSerializer<?>) sel.forClass(type)).bind(reader, sel, tables, false);
+		}
+		return DeX.compose(type, DeX.compose(tables.apply(reader), sel), sel);
+	}
+	
+	/**
+	 * Same as {@link #bind(Class, DeXReader, Serialization, Function)} for a whole document,
+	 * the reader has to be on its start. If the document is a single table the object
+	 * is read from that table, like the output of {@link DeXParser#serialize(Object)}.
+	 */
+	public static <T> T bindDocument(Class<T> type, DeXReader reader, Serialization sel, Function<DeXReader, DeXTable> tables) {
+		if (!canBind(type, sel)) throw new IllegalArgumentException("Can't bind " + type);
+		return ((ClassSerializer<T>) sel.forClass(type)).bind(reader, sel, tables, true);
+	}
+	
+	private T bind(DeXReader reader, Serialization sel, Function<DeXReader, DeXTable> tables, boolean document) {
+		T obj;
+		try {
+			obj = ctr.get();
+		} catch (Throwable t) {
+			throw new RuntimeException("Error while trying to deserialize from table: ", t);
+		}
+		
+		// The first key wins, just like in a table
+		boolean[] set = new boolean[fields.length];
+		FieldCache field = null;
+		// A document that starts with a table might only hold the object, that is known at its end
+		DeXTable first = null;
+		FieldCache firstField = null;
+		int entries = 0;
+		while (true) {
+			Event event = reader.next();
+			if (first != null && event != Event.END_TABLE) {
+				if (firstField != null) set(obj, firstField, DeX.compose(firstField.type, DeX.compose(first, sel), sel), set);
+				first = null;
+			}
+			switch (event) {
+			case KEY:
+				field = reader.type() == Type.STRING ? fieldsByName.get(reader.stringValue()) : null;
+				if (field != null && set[field.index]) field = null;
+				break;
+			case VALUE:
+				if (field != null) read(obj, field, reader, sel, set);
+				field = null;
+				entries++;
+				break;
+			case START_TABLE:
+				// Tagged tables without a key use their tag
+				if (field == null && reader.tag().length() > 0) {
+					field = fieldsByName.get(reader.tag());
+					if (field != null && set[field.index]) field = null;
+				}
+				if (document && entries == 0) {
+					first = tables.apply(reader);
+					firstField = field;
+				}
+				else if (field != null) set(obj, field, bind(field.type, reader, sel, tables), set);
+				else reader.skipTable();
+				field = null;
+				entries++;
+				break;
+			case END_TABLE:
+				if (first != null) {
+					Object value = DeX.compose(first, sel);
+					if (value instanceof DeXTable || clazz.isInstance(value)) return clazz.cast(DeX.compose(clazz, value, sel));
+					if (firstField != null) set(obj, firstField, DeX.compose(firstField.type, value, sel), set);
+				}
+				return obj;
+			}
+		}
+	}
+	
+	private void read(T obj, FieldCache field, DeXReader reader, Serialization sel, boolean[] set) {
+		try {
+			field.codec.read(obj, reader, sel);
+			set[field.index] = true;
+		} catch (Throwable t) {
+			throw new RuntimeException("Error while trying to deserialize from table: ", t);
+		}
+	}
+	
+	private void set(T obj, FieldCache field, Object value, boolean[] set) {
+		try {
+			field.accessor.set(obj, value);
+			set[field.index] = true;
+		} catch (Throwable t) {
+			throw new RuntimeException("Error while trying to deserialize from table: ", t);
+		}
+	}
 }
\ No newline at end of file
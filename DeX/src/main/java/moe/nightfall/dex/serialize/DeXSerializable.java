@@ -7,6 +7,7 @@ import java.lang.annotation.Target;
 
 import moe.nightfall.dex.DeXParser;
 import moe.nightfall.dex.DeXTable;
+import moe.nightfall.dex.DeXWriter;
 
 /**
  * This is a marker interface to be implemented by any class that handles
@@ -71,6 +72,15 @@ public interface DeXSerializable {
 		 */
 		public DeXTable serialize(T obj, Serialization sel);
 		
+		/**
+		 * Writes the serialized object as the next value of the writer. 
+		 * The default implementation prints the table returned by
+		 * {@link #serialize(Object, Serialization)}, override this to skip it.
+		 */
+		public default void write(T obj, DeXWriter out, Serialization sel) {
+			out.write(serialize(obj, sel));
+		}
+		
 		/**
 		 * Override this to deserialze a given {@link DeXTable}.
 		 */
@@ -12,6 +12,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 import moe.nightfall.dex.DeXTable;
+import moe.nightfall.dex.DeXWriter;
 import moe.nightfall.dex.serialize.DeXSerializable.DeXDeserializer;
 import moe.nightfall.dex.serialize.DeXSerializable.DeXSerializer;
 import moe.nightfall.dex.serialize.DeXSerializable.Serialize;
@@ -66,6 +67,17 @@ class DeXSerializerImpl<T extends DeXSerializable> extends ClassSerializer<T> {
 		} else return super.serialize(obj, sel);
 	}
 
+	@Override
+	public void write(T obj, DeXWriter out, Serialization sel) {
+		if (serialize != null) out.write(serialize(obj, sel));
+		else super.write(obj, out, sel);
+	}
+
+	@Override
+	boolean canBind() {
+		return deserialize == null;
+	}
+
 	@Override
 	public T deserialize(DeXTable table, Serialization sel) {
 		if (deserialize != null) {
@@ -0,0 +1,307 @@
+package moe.nightfall.dex.serialize;
+
+import moe.nightfall.dex.DeX;
+import moe.nightfall.dex.DeXReader;
+import moe.nightfall.dex.DeXReader.Type;
+import moe.nightfall.dex.DeXTable;
+import moe.nightfall.dex.DeXWriter;
+
+/**
+ * Moves the value of a single field between objects, tables, the reader and the writer.
+ * One is picked for every field of a {@link ClassSerializer} by its type.
+ *
+ * <p>Numbers and booleans, primitive or wrapped, are read and written through the typed methods
+ * of {@link Accessor}, {@link DeXReader} and {@link DeXWriter}. Wrappers only get boxed for the
+ * field itself. Everything else goes through {@link DeX#decompose(Object, Serialization)} and
+ * {@link DeX#compose(Class, Object, Serialization)}.</p>
+ *
+ * @author Vic
+ */
+class FieldCodec {
+
+	final Accessor accessor;
+	final Class<?> type;
+
+	FieldCodec(Accessor accessor, Class<?> type) {
+		this.accessor = accessor;
+		this.type = type;
+	}
+
+	static FieldCodec of(Accessor accessor, Class<?> type) {
+		if (type == int.class || type == Integer.class) return new IntField(accessor, type);
+		if (type == double.class || type == Double.class) return new DoubleField(accessor, type);
+		if (type == long.class || type == Long.class) return new LongField(accessor, type);
+		if (type == float.class || type == Float.class) return new FloatField(accessor, type);
+		if (type == short.class || type == Short.class) return new ShortField(accessor, type);
+		if (type == byte.class || type == Byte.class) return new ByteField(accessor, type);
+		if (type == boolean.class || type == Boolean.class) return new BooleanField(accessor, type);
+		// Characters are written unquoted and read as strings, that needs the objects
+		return new FieldCodec(accessor, type);
+	}
+
+	/** False if the field is null, it gets skipped then */
+	boolean isPresent(Object obj) {
+		return accessor.get(obj) != null;
+	}
+
+	/** Writes the value of the field, it has to be present */
+	void write(Object obj, DeXWriter out, Serialization sel) {
+		DeX.decompose(accessor.get(obj), out, sel);
+	}
+
+	void put(Object obj, String name, DeXTable.Builder builder, Serialization sel) {
+		builder.put(name, DeX.decompose(accessor.get(obj), sel));
+	}
+
+	/** Sets the field to a value of a table, null if it is missing */
+	void set(Object obj, Object value, Serialization sel) {
+		accessor.set(obj, DeX.compose(type, value, sel));
+	}
+
+	/** Sets the field to the current value of the reader */
+	void read(Object obj, DeXReader reader, Serialization sel) {
+		set(obj, reader.value(), sel);
+	}
+
+	/**
+	 * Numbers of any type. Missing values leave primitive fields alone,
+	 * values that aren't numbers are passed on to fail like before.
+	 * Integers narrower than long go through double, like the numbers of
+	 * a table do, so values out of range are clamped the same on every path.
+	 */
+	private static abstract class Numeric extends FieldCodec {
+
+		final boolean boxed;
+
+		Numeric(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+			this.boxed = !type.isPrimitive();
+		}
+
+		abstract double doubleValue(Object obj);
+
+		abstract void setNumber(Object obj, Number value);
+
+		abstract void setLong(Object obj, long value);
+
+		abstract void setDouble(Object obj, double value);
+
+		@Override
+		boolean isPresent(Object obj) {
+			return !boxed || accessor.get(obj) != null;
+		}
+
+		@Override
+		void write(Object obj, DeXWriter out, Serialization sel) {
+			out.value(doubleValue(obj));
+		}
+
+		@Override
+		void put(Object obj, String name, DeXTable.Builder builder, Serialization sel) {
+			if (isPresent(obj)) builder.putDouble(name, doubleValue(obj));
+		}
+
+		@Override
+		void set(Object obj, Object value, Serialization sel) {
+			if (value instanceof Number) setNumber(obj, (Number) value);
+			else if (value != null || boxed) super.set(obj, value, sel);
+		}
+
+		@Override
+		void read(Object obj, DeXReader reader, Serialization sel) {
+			if (reader.type() != Type.NUMBER) super.read(obj, reader, sel);
+			else if (reader.isLong()) setLong(obj, reader.longValue());
+			else setDouble(obj, reader.doubleValue());
+		}
+	}
+
+	private static final class IntField extends Numeric {
+
+		IntField(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+		}
+
+		private void setValue(Object obj, int value) {
+			if (boxed) accessor.set(obj, value);
+			else accessor.setInt(obj, value);
+		}
+
+		@Override
+		double doubleValue(Object obj) {
+			return boxed ? (Integer) accessor.get(obj) : accessor.getInt(obj);
+		}
+
+		@Override void setNumber(Object obj, Number value) { setDouble(obj, value.doubleValue()); }
+		@Override void setLong(Object obj, long value) { setDouble(obj, value); }
+		@Override void setDouble(Object obj, double value) { setValue(obj, (int) value); }
+	}
+
+	private static final class DoubleField extends Numeric {
+
+		DoubleField(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+		}
+
+		private void setValue(Object obj, double value) {
+			if (boxed) accessor.set(obj, value);
+			else accessor.setDouble(obj, value);
+		}
+
+		@Override
+		double doubleValue(Object obj) {
+			return boxed ? (Double) accessor.get(obj) : accessor.getDouble(obj);
+		}
+
+		@Override void setNumber(Object obj, Number value) { setValue(obj, value.doubleValue()); }
+		@Override void setLong(Object obj, long value) { setValue(obj, value); }
+		@Override void setDouble(Object obj, double value) { setValue(obj, value); }
+	}
+
+	/**
+	 * Integers in the text are read exactly, even if the table would store them as doubles.
+	 * They are written exactly as well, tables with typed numbers keep them.
+	 */
+	private static final class LongField extends Numeric {
+
+		LongField(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+		}
+
+		private long longValue(Object obj) {
+			return boxed ? (Long) accessor.get(obj) : accessor.getLong(obj);
+		}
+		
+		private void setValue(Object obj, long value) {
+			if (boxed) accessor.set(obj, value);
+			else accessor.setLong(obj, value);
+		}
+
+		@Override
+		double doubleValue(Object obj) {
+			return longValue(obj);
+		}
+		
+		@Override
+		void write(Object obj, DeXWriter out, Serialization sel) {
+			out.value(longValue(obj));
+		}
+		
+		@Override
+		void put(Object obj, String name, DeXTable.Builder builder, Serialization sel) {
+			if (isPresent(obj)) builder.putLong(name, longValue(obj));
+		}
+
+		@Override void setNumber(Object obj, Number value) { setValue(obj, value.longValue()); }
+		@Override void setLong(Object obj, long value) { setValue(obj, value); }
+		@Override void setDouble(Object obj, double value) { setValue(obj, (long) value); }
+	}
+
+	private static final class FloatField extends Numeric {
+
+		FloatField(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+		}
+
+		private void setValue(Object obj, float value) {
+			if (boxed) accessor.set(obj, value);
+			else accessor.setFloat(obj, value);
+		}
+
+		@Override
+		double doubleValue(Object obj) {
+			return boxed ? (Float) accessor.get(obj) : accessor.getFloat(obj);
+		}
+
+		@Override void setNumber(Object obj, Number value) { setValue(obj, value.floatValue()); }
+		@Override void setLong(Object obj, long value) { setValue(obj, (float) value); }
+		@Override void setDouble(Object obj, double value) { setValue(obj, (float) value); }
+	}
+
+	private static final class ShortField extends Numeric {
+
+		ShortField(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+		}
+
+		private void setValue(Object obj, short value) {
+			if (boxed) accessor.set(obj, value);
+			else accessor.setShort(obj, value);
+		}
+
+		@Override
+		double doubleValue(Object obj) {
+			return boxed ? (Short) accessor.get(obj) : accessor.getShort(obj);
+		}
+
+		@Override void setNumber(Object obj, Number value) { setDouble(obj, value.doubleValue()); }
+		@Override void setLong(Object obj, long value) { setDouble(obj, value); }
+		@Override void setDouble(Object obj, double value) { setValue(obj, (short) value); }
+	}
+
+	private static final class ByteField extends Numeric {
+
+		ByteField(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+		}
+
+		private void setValue(Object obj, byte value) {
+			if (boxed) accessor.set(obj, value);
+			else accessor.setByte(obj, value);
+		}
+
+		@Override
+		double doubleValue(Object obj) {
+			return boxed ? (Byte) accessor.get(obj) : accessor.getByte(obj);
+		}
+
+		@Override void setNumber(Object obj, Number value) { setDouble(obj, value.doubleValue()); }
+		@Override void setLong(Object obj, long value) { setDouble(obj, value); }
+		@Override void setDouble(Object obj, double value) { setValue(obj, (byte) value); }
+	}
+
+	private static final class BooleanField extends FieldCodec {
+
+		private final boolean boxed;
+
+		BooleanField(Accessor accessor, Class<?> type) {
+			super(accessor, type);
+			this.boxed = !type.isPrimitive();
+		}
+
+		private boolean get(Object obj) {
+			return boxed ? (Boolean) accessor.get(obj) : accessor.getBoolean(obj);
+		}
+
+		private void setValue(Object obj, boolean value) {
+			if (boxed) accessor.set(obj, value);
+			else accessor.setBoolean(obj, value);
+		}
+
+		@Override
+		boolean isPresent(Object obj) {
+			return !boxed || accessor.get(obj) != null;
+		}
+
+		@Override
+		void write(Object obj, DeXWriter out, Serialization sel) {
+			out.value(get(obj));
+		}
+
+		@Override
+		void put(Object obj, String name, DeXTable.Builder builder, Serialization sel) {
+			if (isPresent(obj)) builder.put(name, get(obj));
+		}
+
+		@Override
+		void set(Object obj, Object value, Serialization sel) {
+			if (value instanceof Boolean) setValue(obj, (Boolean) value);
+			else if (value != null || boxed) super.set(obj, value, sel);
+		}
+
+		@Override
+		void read(Object obj, DeXReader reader, Serialization sel) {
+			if (reader.type() == Type.BOOLEAN) setValue(obj, reader.booleanValue());
+			else super.read(obj, reader, sel);
+		}
+	}
+}
@@ -1,58 +1,259 @@
 package moe.nightfall.dex.serialize;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Modifier;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import moe.nightfall.dex.DeXTable;
 import moe.nightfall.dex.serialize.DeXSerializable.Serializer;
 
+/**
+ * Registry of serializers, by class and by tag. It can be shared between threads,
+ * lookups don't lock and every class gets a single serializer.
+ *
+ * Once all serializers are registered and built, {@link #freeze()} gives an immutable
+ * copy. It can't be changed anymore, serializers for classes it hasn't seen are still
+ * built on their first use and kept on the side. Use {@link #prewarm(Class...)} or
+ * {@link #prewarm(String)} before that to build serializers at startup instead of
+ * on the first document.
+ *
+ * @author Vic
+ */
 public class Serialization {
-	
-	private Map<String, Serializer<?>> serializerByTag = new HashMap<>();
+
+	private final Map<String, Serializer<?>> serializerByTag;
 	// Reverse lookup for serialization
-	private Map<Class<?>, String> tagByClass = new HashMap<>();
-	private Map<Class<?>, Serializer<?>> serializerByClass = new HashMap<>();
-	
+	private final Map<Class<?>, String> tagByClass;
+	private final Map<Class<?>, Serializer<?>> serializerByClass;
+	// Classes a frozen copy only sees after it was frozen
+	private final Map<Class<?>, Serializer<?>> lateByClass;
+
+	private final boolean frozen;
+
+	public Serialization() {
+		serializerByTag = new ConcurrentHashMap<>();
+		tagByClass = new ConcurrentHashMap<>();
+		serializerByClass = new ConcurrentHashMap<>();
+		lateByClass = null;
+		frozen = false;
+	}
+
+	private Serialization(Serialization sel) {
+		serializerByTag = Collections.unmodifiableMap(new HashMap<>(sel.serializerByTag));
+		tagByClass = Collections.unmodifiableMap(new HashMap<>(sel.tagByClass));
+		serializerByClass = Collections.unmodifiableMap(new HashMap<>(sel.serializerByClass));
+		lateByClass = new ConcurrentHashMap<>();
+		frozen = true;
+	}
+
+	/** Immutable copy of everything that is registered or was built so far */
+	public Serialization freeze() {
+		return frozen ? this : new Serialization(this);
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	private void checkFrozen() {
+		if (frozen) throw new IllegalStateException("Serialization is frozen!");
+	}
+
 	public void serializeTagAs(String tag, Class<?> clazz) {
+		checkFrozen();
 		Serializer<?> ser = forClass(clazz);
 		serializerByTag.put(tag, ser);
 		tagByClass.put(clazz, tag);
 	}
-	
+
 	public <T> void serializeTagAs(String tag, Class<T> clazz, Serializer<T> ser) {
 		serializeAs(clazz, ser);
 		serializerByTag.put(tag, ser);
 		tagByClass.put(clazz, tag);
 	}
-	
+
 	public <T> void serializeAs(Class<T> clazz, Serializer<T> ser) {
+		checkFrozen();
 		serializerByClass.put(clazz, ser);
 	}
-	
+
 	public Serializer<?> forTable(DeXTable table) {
 		if (!table.hasTag()) throw new IllegalArgumentException("Can not deserialize table, no tag defined");
 		Serializer<?> sel = forTag(table.tag());
 		if (sel == null) throw new IllegalArgumentException("Can not deserialize table, no serializer defined for tag " + table.tag());
 		return sel;
 	}
-	
+
 	public Serializer<?> forTag(String tag) {
 		return serializerByTag.get(tag);
 	}
-	
+
 	public String tagFor(Class<?> clazz) {
 		return tagByClass.getOrDefault(clazz, "");
 	}
-	
+
+	@SuppressWarnings("unchecked")
 	public <T> Serializer<T> forClass(Class<T> clazz) {
 		Serializer<T> sel = (Serializer<T>) serializerByClass.get(clazz);
-		if (sel == null) {
-			if (DeXSerializable.class.isAssignableFrom(clazz)) {
-				serializerByClass.put(clazz, sel = new DeXSerializerImpl(clazz));
-			} else {
-				serializerByClass.put(clazz, sel = new ClassSerializer(clazz));
+		if (sel != null) return sel;
+		// Only locks on a miss, building the serializer can take a while
+		return (Serializer<T>) (frozen ? lateByClass : serializerByClass).computeIfAbsent(clazz, Serialization::create);
+	}
+
+	/**
+	 * Builds the serializers of all given classes in parallel. Returns the time it took
+	 * for every class in nanoseconds, classes that already had one take next to none.
+	 */
+	public Map<Class<?>, Long> prewarm(Class<?>... classes) {
+		checkFrozen();
+		Map<Class<?>, Long> times = new ConcurrentHashMap<>();
+		Arrays.stream(classes).parallel().forEach(clazz -> times.put(clazz, time(clazz)));
+		return ordered(Arrays.asList(classes), times);
+	}
+
+	/**
+	 * Same as {@link #prewarm(Class...)} for every class in the package and its sub packages
+	 * that can be deserialized, which means it has an empty constructor. Classes that
+	 * can't be serialized are skipped.
+	 */
+	public Map<Class<?>, Long> prewarm(String packageName) {
+		checkFrozen();
+		List<Class<?>> classes = scan(packageName);
+		Map<Class<?>, Long> times = new ConcurrentHashMap<>();
+		classes.parallelStream().forEach(clazz -> {
+			try {
+				times.put(clazz, time(clazz));
+			} catch (RuntimeException e) {
+				// Not every class is meant to be serialized
 			}
+		});
+		return ordered(classes, times);
+	}
+
+	private long time(Class<?> clazz) {
+		long start = System.nanoTime();
+		forClass(clazz);
+		return System.nanoTime() - start;
+	}
+
+	private static Map<Class<?>, Long> ordered(List<Class<?>> classes, Map<Class<?>, Long> times) {
+		Map<Class<?>, Long> ordered = new LinkedHashMap<>();
+		for (Class<?> clazz : classes) {
+			Long time = times.get(clazz);
+			if (time != null) ordered.put(clazz, time);
+		}
+		return ordered;
+	}
+
+	/** Finds the classes of a package in directories and jars of the context class loader */
+	private static List<Class<?>> scan(String packageName) {
+		ClassLoader loader = Thread.currentThread().getContextClassLoader();
+		if (loader == null) loader = Serialization.class.getClassLoader();
+		String path = packageName.replace('.', '/');
+
+		List<String> names = new ArrayList<>();
+		try {
+			Enumeration<URL> urls = loader.getResources(path);
+			while (urls.hasMoreElements()) {
+				URL url = urls.nextElement();
+				if (url.getProtocol().equals("file")) {
+					Path root = Paths.get(url.toURI());
+					try (Stream<Path> files = Files.walk(root)) {
+						files.map(file -> root.relativize(file).toString().replace(root.getFileSystem().getSeparator(), "/"))
+							.filter(file -> file.endsWith(".class"))
+							.forEach(file -> names.add(path + "/" + file));
+					}
+				} else if (url.getProtocol().equals("jar")) {
+					JarURLConnection connection = (JarURLConnection) url.openConnection();
+					connection.setUseCaches(false);
+					try (JarFile jar = connection.getJarFile()) {
+						for (JarEntry entry : Collections.list(jar.entries())) {
+							String name = entry.getName();
+							if (name.startsWith(path + "/") && name.endsWith(".class")) names.add(name);
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException(e);
+		}
+
+		List<Class<?>> classes = new ArrayList<>();
+		for (String name : names.stream().distinct().sorted().collect(Collectors.toList())) {
+			name = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+			if (name.endsWith("package-info")) continue;
+			try {
+				Class<?> clazz = Class.forName(name, false, loader);
+				if (isSerializable(clazz)) classes.add(clazz);
+			} catch (ClassNotFoundException | LinkageError e) {
+				// Missing dependencies, can't be serialized either
+			}
+		}
+		return classes;
+	}
+
+	private static boolean isSerializable(Class<?> clazz) {
+		int modifiers = clazz.getModifiers();
+		if (clazz.isInterface() || clazz.isEnum() || clazz.isSynthetic() || Modifier.isAbstract(modifiers)) return false;
+		if (clazz.isAnonymousClass() || clazz.isLocalClass()) return false;
+		if (clazz.isMemberClass() && !Modifier.isStatic(modifiers)) return false;
+		try {
+			clazz.getDeclaredConstructor();
+			return true;
+		} catch (NoSuchMethodException | SecurityException e) {
+			return false;
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <T> Serializer<T> create(Class<T> clazz) {
+		if (DeXSerializable.class.isAssignableFrom(clazz)) {
+			Serializer<T> generated = generated(clazz);
+			if (generated != null) return generated;
+			return new DeXSerializerImpl(clazz);
+		} else {
+			return new ClassSerializer(clazz);
+		}
+	}
+	
+	/** 
+	 * The serializer the annotation processor of DeX-processor generated for the class,
+	 * it is named after the class and lives in the same package. Null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> Serializer<T> generated(Class<T> clazz) {
+		String name = clazz.getName();
+		int pkg = name.lastIndexOf('.') + 1;
+		name = name.substring(0, pkg) + name.substring(pkg).replace('$', '_') + "_DeXSerializer";
+		try {
+			Class<?> generated = Class.forName(name, true, clazz.getClassLoader());
+			if (!Serializer.class.isAssignableFrom(generated)) return null;
+			return (Serializer<T>) generated.getConstructor().newInstance();
+		} catch (ClassNotFoundException e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException("Can't create generated serializer " + name, e);
 		}
-		return sel;
 	}
-}
\ No newline at end of file
+}
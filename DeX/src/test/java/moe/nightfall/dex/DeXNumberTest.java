@@ -2,6 +2,9 @@ package moe.nightfall.dex;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Test;
 
 public class DeXNumberTest {
@@ -26,5 +29,77 @@ public class DeXNumberTest {
 		assertThat(DeX.parseDeXNumber("0xABCDEF")).isEqualTo(0xABCDEF);
 		assertThat(DeX.parseDeXNumber("0b110110001110001")).isEqualTo(0b110110001110001);
 		assertThat(DeX.parseDeXNumber("0o777")).isEqualTo(0777);
+		
+		// Fractions without leading or trailing digits, long mantissas
+		assertThat(DeX.parseDeXNumber(".5")).isEqualTo(0.5);
+		assertThat(DeX.parseDeXNumber("5.")).isEqualTo(5);
+		assertThat(DeX.parseDeXNumber("0.1")).isEqualTo(0.1);
+		assertThat(DeX.parseDeXNumber("12345678901234567890")).isEqualTo(12345678901234567890D);
+		assertThat(DeX.parseDeXNumber("1e400")).isEqualTo(Double.POSITIVE_INFINITY);
+		
+		// Suffixes of Java literals
+		assertThat(DeX.parseDeXNumber("1f")).isEqualTo(1);
+		assertThat(DeX.parseDeXNumber("-2.5D")).isEqualTo(-2.5);
+		assertThat(DeX.parseDeXNumber("1e2d")).isEqualTo(100);
+		assertThat(DeX.parseDeXNumber(".5F")).isEqualTo(0.5);
+		assertThat(DeX.parseDeXNumber("0x1f")).isEqualTo(0x1f);
+		DeXTable table = DeXParser.create().typedNumbers(true).parse("f: 1f, d: 2d");
+		assertThat(table.get("f")).isEqualTo(1.0);
+		assertThat(table.getDouble("d")).isEqualTo(2);
+	}
+	
+	@Test
+	public void testNoNumber() {
+		assertThat(DeX.parseDeXNumber("name")).isNull();
+		assertThat(DeX.parseDeXNumber("first name")).isNull();
+		assertThat(DeX.parseDeXNumber("QWCE-00264")).isNull();
+		assertThat(DeX.parseDeXNumber("1 2")).isNull();
+		assertThat(DeX.parseDeXNumber("1e")).isNull();
+		assertThat(DeX.parseDeXNumber(".")).isNull();
+		assertThat(DeX.parseDeXNumber("-")).isNull();
+		assertThat(DeX.parseDeXNumber("0x")).isNull();
+		assertThat(DeX.parseDeXNumber("0b102")).isNull();
+		assertThat(DeX.parseDeXNumber("Inf")).isNull();
+		assertThat(DeX.parseDeXNumber("d")).isNull();
+		assertThat(DeX.parseDeXNumber("1ff")).isNull();
+		assertThat(DeX.parseDeXNumber("1ef")).isNull();
+		// Long overflow
+		assertThat(DeX.parseDeXNumber("0xFFFFFFFFFFFFFFFFF")).isNull();
+	}
+	
+	@Test
+	public void testNumberFormat() {
+		// Integers without decimal point
+		assertThat(DeX.formatNumber(15.0)).isEqualTo("15");
+		assertThat(DeX.formatNumber(-0.0)).isEqualTo("-0.0");
+		assertThat(1 / DeX.parseDeXNumber(DeX.formatNumber(-0.0))).isEqualTo(Double.NEGATIVE_INFINITY);
+		assertThat(1 / DeXParser.create().parse(DeX.print(DeXTable.builder().put("z", -0.0).create())).getTable(0).getDouble("z")).isEqualTo(Double.NEGATIVE_INFINITY);
+		assertThat(DeX.formatNumber((Long) Long.MIN_VALUE)).isEqualTo("-9223372036854775808");
+		assertThat(DeX.formatNumber(1e20)).isEqualTo("100000000000000000000");
+		
+		// Shortest text that parses back to the same value
+		assertThat(DeX.formatNumber(0.1)).isEqualTo("0.1");
+		assertThat(DeX.formatNumber(0.25)).isEqualTo("0.25");
+		assertThat(DeX.formatNumber(0.1 + 0.2)).isEqualTo("0.30000000000000004");
+		assertThat(DeX.formatNumber(2e-7)).isEqualTo("2e-7");
+		assertThat(DeX.formatNumber(0.000123)).isEqualTo("0.000123");
+		assertThat(DeX.formatNumber(1.5e300)).isEqualTo("1.5e300");
+		assertThat(DeX.formatNumber(Double.MIN_VALUE)).isEqualTo("4.9e-324");
+		assertThat(DeX.formatNumber(Double.NaN)).isEqualTo("NaN");
+		assertThat(DeX.formatNumber(Double.NEGATIVE_INFINITY)).isEqualTo("-Infinity");
+		
+		Random random = new Random(42);
+		for (int i = 0; i < 100000; i++) {
+			double d = Double.longBitsToDouble(random.nextLong());
+			if (Double.isNaN(d)) continue;
+			String text = DeX.formatNumber(d);
+			assertThat(DeX.parseDeXNumber(text)).as(text).isEqualTo(d);
+		}
+		
+		// No shared state between threads
+		double[] values = random.doubles(100000, -1e6, 1e6).toArray();
+		String[] expected = Arrays.stream(values).mapToObj(DeX::formatNumber).toArray(String[]::new);
+		String[] parallel = Arrays.stream(values).parallel().mapToObj(DeX::formatNumber).toArray(String[]::new);
+		assertThat(parallel).isEqualTo(expected);
 	}
 }
@@ -2,11 +2,30 @@ package moe.nightfall.dex;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
+import java.awt.Point;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import moe.nightfall.dex.DeXParser.ParseException;
 import moe.nightfall.dex.DeXParser.UnexpectedTokenException;
+import moe.nightfall.dex.serialize.DeXSerializable.Serializer;
+import moe.nightfall.dex.serialize.Serialization;
 
 public class DeXParserTest {
 	
@@ -99,6 +118,19 @@ public class DeXParserTest {
 		assertThatThrownBy(() -> parser.parse("{\"this is invalid!} ")).isInstanceOf(UnexpectedTokenException.class);
 	}
 	
+	@Test
+	public void testLenientSyntax() {
+		// Text after quotes, unknown escapes, flags as keys and a second key
+		DeXTable table = parser.parse("a: \"x, \" y , b: \"q\\z\", -f: 1, k1: k2: v\n\"t\" ag { }");
+		assertThat(table.getString("a")).isEqualTo("x,  y");
+		assertThat(table.getString("b")).isEqualTo("qz");
+		assertThat(table.getInt("-f")).isEqualTo(1);
+		assertThat(table.getString("k2")).isEqualTo("v");
+		assertThat(table.hasKey("k1")).isFalse();
+		assertThat(table.getTable("t ag").tag()).isEqualTo("t ag");
+		assertThat(table.size()).isEqualTo(5);
+	}
+	
 	@Test
 	public void testInvalidTable() {
 		assertThatThrownBy(() -> parser.parse("{")).isInstanceOf(ParseException.class);
@@ -108,6 +140,309 @@ public class DeXParserTest {
 		assertThatThrownBy(() -> parser.parse("{value}{value}")).isInstanceOf(ParseException.class);
 	}
 	
+	@Test
+	public void testReader() {
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			source.append("key").append(i).append(" : value ").append(i).append("\r\n");
+		}
+		
+		DeXTable table = parser.parse(new StringReader(source.toString()));
+		assertThat(table.size()).isEqualTo(10000);
+		assertThat(table.getString("key9999")).isEqualTo("value 9999");
+		
+		source.append("broken : {");
+		assertThatThrownBy(() -> parser.parse(new StringReader(source.toString())))
+			.isInstanceOf(ParseException.class)
+			.hasMessageContaining("9999: key9999 : value 9999");
+	}
+	
+	@Test
+	public void testErrorPosition() {
+		try {
+			parser.parse("first : 1\nsecond : {a,, b}");
+		} catch (ParseException e) {
+			assertThat(e.getLine()).isEqualTo(1);
+			assertThat(e.getColumn()).isEqualTo(12);
+			return;
+		}
+		throw new AssertionError("Expected ParseException");
+	}
+	
+	@Test
+	public void testDepthLimit() {
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 100; i++) source.append('{');
+		for (int i = 0; i < 100; i++) source.append('}');
+		
+		assertThat(parser.parse(source).getTable(0).getTable(0).size()).isEqualTo(1);
+		assertThatThrownBy(() -> parser.maxDepth(50).parse(source))
+			.isInstanceOf(ParseException.class)
+			.hasMessageContaining("deeper than 50");
+		assertThatThrownBy(() -> parser.parse("a {\nb {\n"))
+			.isInstanceOf(ParseException.class)
+			.hasMessageContaining("table opened at line 1, column 2");
+	}
+	
+	@Test
+	public void testWriter() {
+		DeXTable.Builder builder = DeXTable.builder("big");
+		for (int i = 0; i < 2000; i++) {
+			builder.put("key " + i, DeXTable.create("a:b", i, true));
+		}
+		DeXTable table = builder.create();
+		
+		for (boolean pretty : new boolean[] { false, true }) {
+			StringWriter writer = new StringWriter();
+			DeX.write(table, writer, pretty);
+			assertThat(writer.toString()).isEqualTo(DeX.print(table, pretty));
+		}
+	}
+	
+	@Test
+	public void testQuoting() {
+		StringBuilder escaped = new StringBuilder();
+		for (int i = 0; i < 5000; i++) escaped.append("line ").append(i).append(" \"quoted\"\t\\\n");
+		DeXTable table = DeXTable.builder()
+			.put("plain", "just text")
+			.put("special", "a:b, {c}")
+			.put("escaped", escaped.toString())
+			.put("unicode", "\u6625 \u00e9")
+			.create();
+		
+		String pretty = DeX.print(table, true);
+		assertThat(pretty).contains("plain : just text\n").contains("special : \"a:b, {c}\"\n")
+			.contains("escaped : \"line 0 \\\"quoted\\\"\\t\\\\\\nline 1").contains("unicode : \u6625 \u00e9\n");
+		for (String text : new String[] { pretty, DeX.print(table, false) }) {
+			assertThat(parser.parse(text).getTable(0).equals(table)).isTrue();
+		}
+	}
+	
+	@Test
+	public void testParallel() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 20000; i++) {
+			// Keys, positions, tagged tables, quotes with separators and duplicates
+			text.append("entry").append(i % 15000).append(": point { x: ").append(i).append(", y: \"a,\n}b\" }\n");
+			text.append("item").append(i).append(" { ").append(i).append(", +flag }, ").append(i).append('\n');
+		}
+		String source = text.toString();
+		DeXParser parallel = DeXParser.create().parallel(new ForkJoinPool(4));
+		
+		DeXTable expected = parser.parse(source);
+		DeXTable table = parallel.parse(source);
+		assertThat(table.equals(expected)).isTrue();
+		assertThat(new ArrayList<>(table.keySet())).isEqualTo(new ArrayList<>(expected.keySet()));
+		
+		// Errors are the same as well
+		String broken = source.substring(0, source.length() / 2) + "a : b,, c\n" + source.substring(source.length() / 2);
+		ParseException error = catchParseException(() -> parser.parse(broken));
+		ParseException parallelError = catchParseException(() -> parallel.parse(broken));
+		assertThat(parallelError.getMessage()).isEqualTo(error.getMessage());
+		assertThat(parallelError.getIndex()).isEqualTo(error.getIndex());
+		
+		// Errors of serializers are passed on, without parsing again
+		AtomicInteger calls = new AtomicInteger();
+		parallel.serializeTagAs("failing", StringBuilder.class, new Serializer<StringBuilder>() {
+			@Override
+			public DeXTable serialize(StringBuilder obj, Serialization sel) {
+				return DeXTable.create(obj.toString());
+			}
+			@Override
+			public StringBuilder deserialize(DeXTable table, Serialization sel) {
+				calls.incrementAndGet();
+				throw new IllegalStateException("Can't deserialize");
+			}
+		});
+		String failing = source + "failing { a }\n";
+		assertThatThrownBy(() -> parallel.parse(failing)).isInstanceOf(IllegalStateException.class).hasMessageContaining("Can't deserialize");
+		assertThat(calls.get()).isEqualTo(1);
+	}
+	
+	@Test
+	public void testBinary() {
+		String source =
+			"MAYU : vocaloid { taglist { yandere, lolita }, age: 15, height: 1.5, alive: true, name: \"EXIT TUNES\" }\n" +
+			"{ 1, 2 } : table key, -3 : negative, 2.5 : 0.25, \"\u6625\" : unicode\n" +
+			"point { x: 1, y: -0.5 }, point { x: 2, y: 0 }, point { x: 3, y: 1 }\n" +
+			"list { 1, 9007199254740993, 1e20, -0, foo { }, { } }\n";
+		
+		DeXParser objects = DeXParser.create().serializeTagAs("point", Point.class);
+		for (DeXParser parser : new DeXParser[] { this.parser, DeXParser.create().typedNumbers(true), objects }) {
+			DeXTable table = parser.parse(source);
+			// Objects are decomposed again with the serialization of the parser
+			List<byte[]> encoded = new ArrayList<>();
+			encoded.add(parser.serializeBinary(table));
+			if (parser != objects) encoded.add(DeXBinary.toBytes(table));
+			for (byte[] data : encoded) {
+				DeXTable read = parser.parseBinary(data);
+				assertThat(read.equals(table)).isTrue();
+				assertThat(new ArrayList<>(read.keySet())).isEqualTo(new ArrayList<>(table.keySet()));
+				assertThat(read.hasTypedNumbers()).isEqualTo(table.hasTypedNumbers());
+				assertThat(read.getTable("list").get(1)).isEqualTo(table.getTable("list").get(1));
+				assertThat(read.getTable("MAYU").tag()).isEqualTo("vocaloid");
+			}
+		}
+		assertThat(objects.parse(source).get("point")).isEqualTo(new Point(1, 0));
+		DeXTable tagged = parser.parse("tag { k: v }, f { 1, 2 }");
+		DeXTable read = parser.parseBinary(parser.serializeBinary(tagged));
+		assertThat(read.equals(tagged)).isTrue();
+		assertThat(read.getTable(0).tag()).isEqualTo("tag");
+		
+		// Repeated keys and tags are only written once
+		DeXTable points = parser.parse(source.substring(source.indexOf("\npoint"), source.indexOf("\nlist")));
+		assertThat(DeXBinary.toBytes(points).length).isLessThan(DeX.print(points).length());
+		
+		byte[] data = DeXBinary.toBytes(parser.parse(source));
+		ParseException error = catchParseException(() -> parser.parseBinary(Arrays.copyOf(data, data.length - 3)));
+		assertThat(error.getMessage()).startsWith("Unexpected end of data");
+		assertThat(error.getIndex()).isEqualTo(data.length - 3);
+		assertThat(error.getLine()).isEqualTo(-1);
+		assertThatThrownBy(() -> parser.parseBinary("text".getBytes())).isInstanceOf(ParseException.class);
+	}
+	
+	@Test
+	public void testSymbols() {
+		String source = "server { name: a, port: 1 }, server { name: b, port: 2 }, \"server\" { name: c, port: 3 }";
+		DeXTable table = parser.parse(source);
+		DeXTable first = table.getTable(0), second = table.getTable(1), third = table.getTable(2);
+		// Same instances within a parse
+		assertThat(second.tag()).isSameAs(first.tag()).isSameAs(third.tag());
+		assertThat(second.keySet().iterator().next()).isSameAs(first.keySet().iterator().next());
+		
+		// And between parses with a shared table
+		SymbolTable symbols = new SymbolTable();
+		DeXParser shared = DeXParser.create().symbols(symbols);
+		DeXTable a = shared.parse(source), b = shared.parse(source);
+		assertThat(b.getTable(0).tag()).isSameAs(a.getTable(0).tag());
+		assertThat(a.equals(table)).isTrue();
+		assertThat(symbols.size()).isEqualTo(3);
+		assertThat(symbols.misses()).isEqualTo(3);
+		assertThat(symbols.hits()).isEqualTo(2 * 9 - 3);
+		
+		// Names that don't fit are still parsed
+		SymbolTable small = new SymbolTable(2);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 1000; i++) text.append("key").append(i).append(": tag").append(i).append(" { }\n");
+		assertThat(DeXParser.create().symbols(small).parse(text).equals(parser.parse(text))).isTrue();
+		assertThat(small.size()).isLessThanOrEqualTo(2);
+		assertThat(small.hits() + small.misses()).isEqualTo(2000);
+	}
+	
+	@Test
+	public void testBytes() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			// Multi byte chars end up on the buffer boundaries as well
+			text.append("k\u00e9y").append(i).append(": \"\u6625 \uD83D\uDE00 ").append(i).append("\", t\u00e4g { ").append(i).append(" }\n");
+		}
+		String source = text.toString();
+		byte[] data = source.getBytes(StandardCharsets.UTF_8);
+		DeXTable expected = parser.parse(source);
+		assertThat(parser.parse(data).equals(expected)).isTrue();
+		
+		ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+		buffer.put(data).flip();
+		assertThat(parser.parse(buffer).equals(expected)).isTrue();
+		assertThat(buffer.position()).isEqualTo(0);
+		
+		Path file = Files.createTempFile("dex", ".dex");
+		try {
+			Files.write(file, data);
+			assertThat(parser.parse(file).equals(expected)).isTrue();
+		} finally {
+			Files.delete(file);
+		}
+		
+		// Broken UTF-8 is replaced like a decoder would
+		byte[] broken = { 'a', ':', ' ', (byte) 0xFF, 'b', (byte) 0xC3 };
+		assertThat(parser.parse(broken).equals(parser.parse(new String(broken, StandardCharsets.UTF_8)))).isTrue();
+		
+		// Errors point at the same char
+		String error = source.substring(0, 5000) + "a : b,, c\n" + source.substring(5000);
+		ParseException fromText = catchParseException(() -> parser.parse(error));
+		ParseException fromBytes = catchParseException(() -> parser.parse(error.getBytes(StandardCharsets.UTF_8)));
+		assertThat(fromBytes.getMessage()).isEqualTo(fromText.getMessage());
+		assertThat(fromBytes.getIndex()).isEqualTo(fromText.getIndex());
+	}
+	
+	@Test
+	@SuppressWarnings("rawtypes")
+	public void testLazy() throws Exception {
+		String source =
+			"MAYU : vocaloid { taglist { yandere, lolita }, age: 15, nested { deeper { 1, 2 } } }\n" +
+			"{ 1, 2 } : table key, point { x: 1 }, plain: value, 3.5\n" +
+			"list { a, { }, \"}\" , b { c } }\n" +
+			"counted { 1, 2, 3 }\n";
+		
+		AtomicInteger built = new AtomicInteger();
+		Serializer<ArrayList> counted = new Serializer<ArrayList>() {
+			@Override
+			public DeXTable serialize(ArrayList obj, Serialization sel) {
+				return DeXTable.builder("counted").addAll(obj).create();
+			}
+			@Override
+			public ArrayList deserialize(DeXTable table, Serialization sel) {
+				built.incrementAndGet();
+				return new ArrayList<>(table.values());
+			}
+		};
+		parser.serializeTagAs("counted", ArrayList.class, counted);
+		DeXParser lazy = DeXParser.create().lazy(true).serializeTagAs("counted", ArrayList.class, counted);
+		
+		DeXTable expected = parser.parse(source);
+		built.set(0);
+		DeXTable table = lazy.parse(source);
+		assertThat(built.get()).isEqualTo(0);
+		assertThat(table.getTable("MAYU").getTable("nested").equals(expected.getTable("MAYU").getTable("nested"))).isTrue();
+		assertThat(table.equals(expected)).isTrue();
+		assertThat(new ArrayList<>(table.keySet())).isEqualTo(new ArrayList<>(expected.keySet()));
+		assertThat(table.toString()).isEqualTo(expected.toString());
+		assertThat(built.get()).isEqualTo(1);
+		
+		// Concurrent first access builds the table once
+		built.set(0);
+		DeXTable concurrent = lazy.parse(source);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Object>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) results.add(executor.submit(() -> concurrent.get("counted")));
+			for (Future<Object> result : results) assertThat(result.get()).isSameAs(results.get(0).get());
+		} finally {
+			executor.shutdown();
+		}
+		assertThat(built.get()).isEqualTo(1);
+		
+		// Documents in memory are lazy no matter where they come from, readers can't be
+		byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+		Path file = Files.createTempFile("dex", ".dex");
+		try {
+			Files.write(file, bytes);
+			built.set(0);
+			List<DeXTable> read = Arrays.asList(lazy.parse(bytes), lazy.parse(ByteBuffer.wrap(bytes)), lazy.parse(file));
+			assertThat(built.get()).isEqualTo(0);
+			for (DeXTable t : read) assertThat(t.equals(expected)).isTrue();
+		} finally {
+			Files.delete(file);
+		}
+		assertThatThrownBy(() -> lazy.parse(new StringReader(source))).isInstanceOf(IllegalStateException.class);
+		assertThat(lazy.parse(source, DeXTable.class).equals(expected)).isTrue();
+		
+		// Syntax errors are still found by the parse
+		String broken = "a { b { c: d,, e } }";
+		assertThat(catchParseException(() -> lazy.parse(broken)).getMessage())
+			.isEqualTo(catchParseException(() -> parser.parse(broken)).getMessage());
+	}
+	
+	private static ParseException catchParseException(Runnable parse) {
+		try {
+			parse.run();
+		} catch (ParseException e) {
+			return e;
+		}
+		throw new AssertionError("Expected a ParseException");
+	}
+	
 	private static class Timer {
 		long millis = System.currentTimeMillis();
 		
@@ -0,0 +1,158 @@
+package moe.nightfall.dex;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import moe.nightfall.dex.DeXReader.Event;
+import moe.nightfall.dex.DeXReader.Type;
+
+public class DeXReaderTest {
+	
+	DeXParser parser;
+	
+	@Before
+	public void init() {
+		parser = DeXParser.create();
+	}
+	
+	@Test
+	public void testEvents() {
+		DeXReader reader = parser.reader("name: John\nserver { port: 8080, +debug }\n{a, b}: c");
+		List<String> events = new ArrayList<>();
+		while (reader.hasNext()) {
+			Event event = reader.next();
+			switch (event) {
+			case START_TABLE: events.add(event + " " + reader.tag()); break;
+			case KEY:
+			case VALUE: events.add(event + " " + reader.type() + " " + reader.value()); break;
+			case END_TABLE: events.add(event + (reader.isKey() ? " key" : "")); break;
+			}
+		}
+		
+		assertThat(events).containsExactly(
+			"START_TABLE ",
+			"KEY STRING name", "VALUE STRING John",
+			"START_TABLE server",
+			"KEY STRING port", "VALUE NUMBER 8080.0",
+			"KEY STRING debug", "VALUE BOOLEAN true",
+			"END_TABLE",
+			"START_TABLE ", "VALUE STRING a", "VALUE STRING b", "END_TABLE key",
+			"VALUE STRING c",
+			"END_TABLE"
+		);
+	}
+	
+	@Test
+	public void testSkipTable() {
+		DeXReader reader = parser.reader("server { a { b, c }, d }\nserver { e }\nother { f }");
+		int servers = 0;
+		while (reader.hasNext()) {
+			if (reader.next() == Event.START_TABLE && reader.depth() == 2) {
+				if (reader.tag().equals("server")) servers++;
+				reader.skipTable();
+				assertThat(reader.depth()).isEqualTo(1);
+			} else {
+				assertThat(reader.type()).isEqualTo(Type.TABLE);
+			}
+		}
+		assertThat(servers).isEqualTo(2);
+	}
+	
+	@Test
+	public void testLongTokens() {
+		char[] chars = new char[1000];
+		Arrays.fill(chars, 'x');
+		String text = new String(chars);
+		String escaped = text.replace("x", "\\\"");
+		String number = "1" + text.substring(0, 99).replace('x', '0');
+		String source = text + ": \"" + escaped + "\", short: a\n\"" + text + " " + text + "\"\n" + number + "\nb";
+
+		// The token buffer grows and is reused for the short tokens that follow
+		for (DeXReader reader : Arrays.asList(parser.reader(source), parser.reader(new StringReader(source)))) {
+			List<Object> values = new ArrayList<>();
+			while (reader.hasNext()) {
+				Event event = reader.next();
+				if (event == Event.KEY || event == Event.VALUE) values.add(reader.value());
+			}
+			assertThat(values).containsExactly(text, text.replace('x', '"'), "short", "a", text + " " + text, 1e99, "b");
+		}
+	}
+	
+	@Test
+	public void testRunsAcrossRefill() {
+		// Runs of every length, quoted and not, that end up on both sides of a refill
+		StringBuilder source = new StringBuilder();
+		List<Object> expected = new ArrayList<>();
+		for (int i = 0; source.length() < 100000; i++) {
+			// Some are longer than the whole buffer
+			int length = i % 50 == 0 ? 20000 : i * 37 % 1500 + 1;
+			StringBuilder run = new StringBuilder();
+			for (int j = 0; j < length; j++) run.append((char) ('a' + (i + j) % 26));
+			String value = run.toString();
+			if (i % 3 == 0) {
+				source.append('"').append(value.replace("e", "\\\"")).append("\",");
+				expected.add(value.replace('e', '"'));
+			} else {
+				source.append(value.substring(0, value.length() / 2)).append(" \u6625 ").append(value.substring(value.length() / 2)).append('\n');
+				expected.add(value.substring(0, value.length() / 2) + " \u6625 " + value.substring(value.length() / 2));
+			}
+		}
+		String text = source.toString();
+		
+		// The input is handed out in odd sizes, down to single chars
+		Reader chunked = new Reader() {
+			StringReader in = new StringReader(text);
+			int reads;
+			
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return in.read(cbuf, off, Math.min(len, reads++ * 997 % 3001 + 1));
+			}
+			
+			@Override
+			public void close() {}
+		};
+		for (DeXReader reader : Arrays.asList(parser.reader(text), parser.reader(chunked))) {
+			List<Object> values = new ArrayList<>();
+			while (reader.hasNext()) {
+				if (reader.next() == Event.VALUE) values.add(reader.value());
+			}
+			assertThat(values).isEqualTo(expected);
+		}
+	}
+	
+	@Test
+	public void testPlainScan() {
+		// Every char at every position
+		char[] chars = new char[7];
+		for (int c = 0; c <= Character.MAX_VALUE; c++) {
+			for (int i = 0; i < chars.length; i++) {
+				// Neighbours that differ in a single bit, some of them special as well
+				Arrays.fill(chars, (char) (c ^ 0x100));
+				chars[i] = (char) c;
+				assertThat(DeXInput.plain(chars, 0, chars.length, false)).as("%04x at %d", c, i).isEqualTo(plain(chars, "\"\\\n\r,:{}[]"));
+				assertThat(DeXInput.plain(chars, 0, chars.length, true)).as("%04x at %d", c, i).isEqualTo(plain(chars, "\"\\\n\r"));
+			}
+		}
+		// Several matches, the first one counts
+		char[] run = "abcd efg}h:\\\"".toCharArray();
+		assertThat(DeXInput.plain(run, 0, run.length, false)).isEqualTo(8);
+		assertThat(DeXInput.plain(run, 1, run.length, true)).isEqualTo(10);
+		assertThat(DeXInput.plain(run, 9, 9, true)).isEqualTo(0);
+	}
+	
+	private static int plain(char[] chars, String special) {
+		int i = 0;
+		while (i < chars.length && special.indexOf(chars[i]) < 0) i++;
+		return i;
+	}
+}
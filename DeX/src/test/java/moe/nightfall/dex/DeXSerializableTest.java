@@ -1,6 +1,7 @@
 package moe.nightfall.dex;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 import java.awt.Point;
 import java.util.Arrays;
@@ -115,4 +116,178 @@ public class DeXSerializableTest {
 		assertThat(second.y).isEqualTo(100);
 		assertThat(second.unserialized).isTrue();
 	}
+	
+	static class Nested {
+		String name = "a:b";
+		Point point = new Point(1, 2);
+		List<Object> list = Arrays.asList(1, new Point(3, 4), new Object[] { "x" });
+		String missing = null;
+		SelTest custom = new SelTest();
+	}
+	
+	@Test
+	public void testStreamingSerialization() {
+		parser.serializeTagAs("point", Point.class);
+		Nested nested = new Nested();
+		
+		// Writing directly has to give the same text as printing the table
+		for (boolean pretty : new boolean[] { false, true }) {
+			parser.prettyPrint(pretty);
+			assertThat(parser.serialize(nested)).isEqualTo(DeX.print(parser.decompose(nested), pretty));
+			assertThat(parser.serialize(new Object[] { 1, "a" })).isEqualTo(DeX.print(parser.decompose(new Object[] { 1, "a" }), pretty));
+		}
+	}
+	
+	static class Bound {
+		int x;
+		String name = "default";
+		Point point;
+		List<Object> list;
+		SelTest custom;
+	}
+	
+	@Test
+	public void testBinding() {
+		Bound bound = parser.parse(
+			"x: 3, unknown { a, b { c } }, point { x: 1, y: 2 }, list { 1, 2 }, x: 4\n" +
+			"custom { x: 5, list { a } }", Bound.class);
+		
+		assertThat(bound.x).isEqualTo(3);
+		assertThat(bound.name).isEqualTo("default");
+		assertThat(bound.point).isEqualTo(new Point(1, 2));
+		assertThat(bound.list).containsExactly(1.0, 2.0);
+		// Custom deserializers get the table
+		assertThat(bound.custom.x).isEqualTo(5);
+		assertThat(bound.custom.unserialized).isTrue();
+		
+		// Tagged tables are deserialized by their tag
+		parser.serializeTagAs("point", Point.class);
+		bound = parser.parse("point: point { x: 5, y: 6 }", Bound.class);
+		assertThat(bound.point).isEqualTo(new Point(5, 6));
+		
+		// The output of serialize can be read back
+		String text = parser.serialize(bound);
+		assertThat(parser.parse(text, Bound.class).point).isEqualTo(new Point(5, 6));
+		assertThat(parser.parse(parser.serialize(new Point(7, 8)), Point.class)).isEqualTo(new Point(7, 8));
+
+		// Only a document of a single table is the object itself
+		text = "point { x: 1, y: 2 }, x: 3";
+		bound = parser.parse(text, Bound.class);
+		assertThat(bound.x).isEqualTo(3);
+		assertThat(bound.point).isEqualTo(new Point(1, 2));
+		Bound composed = parser.compose(Bound.class, parser.parse(text));
+		assertThat(composed.x).isEqualTo(bound.x);
+		assertThat(composed.point).isEqualTo(bound.point);
+		assertThat(parser.parse("{ x: 3 }", Bound.class).x).isEqualTo(3);
+		assertThat(parser.parse("{ x: 3 }, name: test", Bound.class).x).isEqualTo(0);
+	}
+	
+	static class Primitives {
+		boolean flag = true;
+		byte b = -3;
+		short s = 300;
+		int i = 70000;
+		long l = 9007199254740993L;
+		float f = 1.5F;
+		double d = 0.25;
+		Integer boxed = 12;
+		Long none = null;
+	}
+	
+	@Test
+	public void testPrimitiveFields() {
+		Primitives p = new Primitives();
+		DeXTable table = parser.decompose(p);
+		// Tables keep numbers as doubles
+		assertThat(table.getDouble("i")).isEqualTo(70000);
+		assertThat(table.getBoolean("flag")).isTrue();
+		assertThat(table.containsKey("none")).isFalse();
+		// Unlike the table, the writer doesn't round the long to double
+		assertThat(parser.serialize(p)).isEqualTo(parser.serialize(table).replace("9007199254740992", "9007199254740993"));
+		
+		Primitives q = parser.compose(Primitives.class, table);
+		assertThat(q.i).isEqualTo(70000);
+		assertThat(q.s).isEqualTo((short) 300);
+		assertThat(q.f).isEqualTo(1.5F);
+		assertThat(q.boxed).isEqualTo(12);
+		assertThat(q.none).isNull();
+		
+		// Integers are bound exactly, missing primitives keep their value
+		q = parser.parse("flag: false, b: 4, l: 9007199254740993, d: 2, boxed: 5.5, none: 7", Primitives.class);
+		assertThat(q.flag).isFalse();
+		assertThat(q.b).isEqualTo((byte) 4);
+		assertThat(q.l).isEqualTo(9007199254740993L);
+		assertThat(q.d).isEqualTo(2.0);
+		assertThat(q.boxed).isEqualTo(5);
+		assertThat(q.none).isEqualTo(7L);
+		assertThat(q.i).isEqualTo(70000);
+		
+		// Out of range values end up the same whether they are bound or composed
+		for (String text : Arrays.asList("i: 1e10, s: 1e10, b: -1e10", "i: 10000000000, s: 10000000000, b: -10000000000")) {
+			q = parser.parse(text, Primitives.class);
+			assertThat(q.i).isEqualTo(Integer.MAX_VALUE);
+			assertThat(q.s).isEqualTo((short) Integer.MAX_VALUE);
+			assertThat(q.b).isEqualTo((byte) Integer.MIN_VALUE);
+			
+			for (DeXParser other : Arrays.asList(parser, DeXParser.create().typedNumbers(true))) {
+				Primitives composed = other.compose(Primitives.class, other.parse(text));
+				assertThat(composed.i).isEqualTo(q.i);
+				assertThat(composed.s).isEqualTo(q.s);
+				assertThat(composed.b).isEqualTo(q.b);
+			}
+		}
+		
+		// Longs are written exactly
+		p.l = Long.MAX_VALUE;
+		p.none = Long.MIN_VALUE;
+		String text = parser.serialize(p);
+		assertThat(text).contains("9223372036854775807").contains("-9223372036854775808");
+		q = parser.parse(text, Primitives.class);
+		assertThat(q.l).isEqualTo(Long.MAX_VALUE);
+		assertThat(q.none).isEqualTo(Long.MIN_VALUE);
+	}
+	
+	@Test
+	public void testConcurrentRegistry() throws Exception {
+		Serialization sel = new Serialization();
+		// Every thread has to get the same serializer
+		List<Object> serializers = Arrays.asList(new Object[8]);
+		Thread[] threads = new Thread[serializers.size()];
+		for (int i = 0; i < threads.length; i++) {
+			int index = i;
+			threads[i] = new Thread(() -> serializers.set(index, sel.forClass(Primitives.class)));
+			threads[i].start();
+		}
+		for (Thread thread : threads) thread.join();
+		assertThat(serializers).doesNotContainNull().containsOnly(sel.forClass(Primitives.class));
+		
+		sel.serializeTagAs("point", Point.class);
+		Serialization frozen = sel.freeze();
+		assertThat(frozen.isFrozen()).isTrue();
+		assertThat(frozen.forTag("point")).isSameAs(sel.forTag("point"));
+		assertThat(frozen.tagFor(Point.class)).isEqualTo("point");
+		assertThat(frozen.forClass(Primitives.class)).isSameAs(sel.forClass(Primitives.class));
+		// New classes still work, they are only built once
+		assertThat(frozen.forClass(Bound.class)).isNotNull().isSameAs(frozen.forClass(Bound.class));
+		assertThat(frozen.freeze().forClass(Bound.class)).isSameAs(frozen.forClass(Bound.class));
+		
+		assertThatThrownBy(() -> frozen.serializeTagAs("bound", Bound.class)).isInstanceOf(IllegalStateException.class);
+		// The original stays usable
+		sel.serializeTagAs("bound", Bound.class);
+		assertThat(frozen.forTag("bound")).isNull();
+	}
+	
+	@Test
+	public void testPrewarm() {
+		Serialization sel = new Serialization();
+		Map<Class<?>, Long> times = sel.prewarm(Primitives.class, Bound.class);
+		assertThat(times.keySet()).containsExactly(Primitives.class, Bound.class);
+		assertThat(times.values().stream().allMatch(time -> time >= 0)).isTrue();
+		assertThat(sel.freeze().forClass(Bound.class)).isSameAs(sel.forClass(Bound.class));
+		
+		// Only classes that can be created are picked up
+		times = sel.prewarm("moe.nightfall.dex");
+		assertThat(times).containsKeys(Primitives.class, Nested.class);
+		assertThat(times).doesNotContainKeys(DeXIterable.class, Column.class);
+	}
 }
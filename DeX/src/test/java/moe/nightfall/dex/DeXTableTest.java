@@ -0,0 +1,139 @@
+package moe.nightfall.dex;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.junit.Test;
+
+public class DeXTableTest {
+	
+	@Test
+	public void testLookup() {
+		DeXTable.Builder builder = DeXTable.builder();
+		for (int i = 0; i < 5000; i++) {
+			builder.put("key" + i, i);
+		}
+		DeXTable table = builder.create();
+		
+		assertThat(table.size()).isEqualTo(5000);
+		assertThat(table.getInt("key1234")).isEqualTo(1234);
+		assertThat(table.containsKey("key4999")).isTrue();
+		assertThat(table.hasKey("key5000")).isFalse();
+		assertThat(table.get(null)).isNull();
+		
+		// Iteration order has to be insertion order
+		int i = 0;
+		for (Entry<Object, Object> entry : table.entrySet()) {
+			assertThat(entry.getKey()).isEqualTo("key" + i++);
+		}
+	}
+	
+	@Test
+	public void testNumericKeys() {
+		DeXTable table = DeXTable.create("a", "b", "c");
+		
+		assertThat(table.isArray()).isTrue();
+		assertThat(table.get(1)).isEqualTo("b");
+		assertThat(table.get(1L)).isEqualTo("b");
+		assertThat(table.get(1D)).isEqualTo("b");
+		assertThat(table.get(1.5)).isNull();
+		
+		table = DeXTable.builder().put(1, "b").put(0, "a").create();
+		assertThat(table.isArray()).isFalse();
+		assertThat(table.get(0)).isEqualTo("a");
+	}
+	
+	@Test
+	public void testDuplicateKeys() {
+		DeXTable table = DeXTable.builder().put("a", 1).put("b", 2).put("a", 3).create();
+		
+		// Every entry is kept, lookups see the first one
+		assertThat(table.size()).isEqualTo(3);
+		assertThat(table.getInt("a")).isEqualTo(1);
+		assertThat(table.values()).containsExactly(1.0, 2.0, 3.0);
+		
+		List<Object> keys = new ArrayList<>(table.keySet());
+		assertThat(keys).containsExactly("a", "b", "a");
+		assertThat(table.entrySet()).contains(new SimpleImmutableEntry<>("a", 3.0));
+		
+		DeXTable copy = table.copy().create();
+		assertThat(copy.equals(table)).isTrue();
+		assertThat(copy.equals(DeXTable.builder().put("a", 1).put("b", 2).put("a", 4).create())).isFalse();
+		assertThat(DeXParser.create().parse(DeX.print(table)).getTable(0).equals(table)).isTrue();
+	}
+	
+	@Test
+	public void testTypedNumbers() {
+		long big = (1L << 53) + 1;
+		DeXTable table = DeXTable.builder().typedNumbers(true).put("long", big).put("double", 0.5).put("int", 3).create();
+		
+		assertThat(table.get("long")).isEqualTo(big);
+		assertThat(table.getLong("long")).isEqualTo(big);
+		assertThat(table.get("double")).isEqualTo(0.5);
+		assertThat(table.get("int")).isEqualTo(3L);
+		assertThat(table.getDouble("int")).isEqualTo(3);
+		
+		// Without typed numbers everything is a double
+		table = DeXTable.builder().put("long", big).create();
+		assertThat(table.get("long")).isEqualTo((double) big);
+
+		// Numeric keys with numeric values only have one put to go to
+		table = DeXTable.builder().typedNumbers(true).put(1, 2).put(0.5, 1.5).putLong("l", 4).putDouble("d", 2).add('c').create();
+		assertThat(table.get(1)).isEqualTo(2L);
+		assertThat(table.get(0.5)).isEqualTo(1.5);
+		assertThat(table.get("l")).isEqualTo(4L);
+		assertThat(table.get("d")).isEqualTo(2.0);
+		assertThat(table.get(4)).isEqualTo('c');
+
+		table = DeXParser.create().typedNumbers(true).parse("a: 9007199254740993, b: 1.5, c: 0x10, d: 1e3");
+		assertThat(table.get("a")).isEqualTo(9007199254740993L);
+		assertThat(table.get("b")).isEqualTo(1.5);
+		assertThat(table.get("c")).isEqualTo(16L);
+		assertThat(table.get("d")).isEqualTo(1000.0);
+		assertThat(DeX.print(table, false)).contains("9007199254740993");
+	}
+	
+	@Test
+	public void testNumericArray() {
+		DeXTable table = DeXParser.create().parse("{1, 2.5, 3.25, -4}");
+		DeXArray array = table.getArray(0);
+		
+		assertThat(array.toDeXTable().isArray()).isTrue();
+		assertThat(array.get(1)).isEqualTo(2.5);
+		assertThat(array.getDouble(3)).isEqualTo(-4);
+		assertThat(array.toDoubleArray()).containsExactly(1, 2.5, 3.25, -4);
+		assertThat(array.doubleStream().sum()).isEqualTo(2.75);
+		assertThat(array.toDeXTable().get(2)).isEqualTo(3.25);
+		
+		array = DeXTable.builder().typedNumbers(true).add(1L).add(2L).create().values();
+		assertThat(array.get(0)).isEqualTo(1L);
+		assertThat(array.getLong(1)).isEqualTo(2);
+		assertThat(array.toDoubleArray()).containsExactly(1, 2);
+		
+		// Mixed arrays still work, but can't be converted
+		DeXArray mixed = DeXTable.create(1, "a").values();
+		assertThat(mixed).containsExactly(1.0, "a");
+		assertThatThrownBy(() -> mixed.toDoubleArray()).isInstanceOf(ArithmeticException.class);
+	}
+	
+	@Test
+	public void testArrayView() throws Exception {
+		DeXTable table = DeXTable.create("a", "b", "c");
+		
+		// The view is shared and reads from the table
+		assertThat(table.values()).isSameAs(table.values());
+		assertThat(table.values().get(2)).isEqualTo("c");
+		assertThat(table.values().toDeXTable() == table).isTrue();
+		
+		List<DeXArray> views = new ArrayList<>();
+		Thread thread = new Thread(() -> views.add(table.values()));
+		thread.start();
+		thread.join();
+		assertThat(views.get(0)).isSameAs(table.values());
+	}
+}
@@ -0,0 +1,186 @@
+package moe.nightfall.dex;
+
+import java.io.StringReader;
+import java.util.function.Supplier;
+
+/**
+ * Measures the throughput of {@link DeXReader} and {@link DeXParser} on a large
+ * flat document and on a deeply nested one, and how long reading the same documents
+ * from {@link DeXBinary} takes. Reports the best of all runs, run as application.
+ *
+ * The input is read once char by char, as the reader did before runs of plain text were
+ * copied in bulk, and once in runs. The scan for runs is compared with one that goes four
+ * chars at a time in a long (SWAR).
+ *
+ * @author Vic
+ */
+public class ParserBenchmark {
+
+	private static final int RUNS = 20;
+
+	// Keeps the JIT from removing the parsing
+	static long sink;
+
+	// One bit for each of the four chars in a long
+	private static final long LOW_BITS = 0x0001_0001_0001_0001L;
+	private static final long HIGH_BITS = 0x8000_8000_8000_8000L;
+	private static final byte[] SPECIAL = new byte[128];
+	
+	static {
+		for (char c : "\"\\\n\r,:{}[]".toCharArray()) SPECIAL[c] = 1;
+	}
+	
+	public static void main(String[] args) {
+		String flat = flat(100_000);
+		String nested = nested(60, 1_000);
+		DeXParser parser = DeXParser.create().maxDepth(100);
+
+		byte[] flatBinary = DeXBinary.toBytes(parser.parse(flat));
+		byte[] nestedBinary = DeXBinary.toBytes(parser.parse(nested));
+
+		char[] flatChars = flat.toCharArray();
+		char[] nestedChars = nested.toCharArray();
+		
+		double[] best = new double[12];
+		long[] fastest = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int run = 0; run < RUNS; run++) {
+			best[0] = Math.max(best[0], read(flat, parser));
+			best[1] = Math.max(best[1], parse(flat, parser));
+			best[2] = Math.max(best[2], read(nested, parser));
+			best[3] = Math.max(best[3], parse(nested, parser));
+			best[4] = Math.max(best[4], input(flat, false));
+			best[5] = Math.max(best[5], input(flat, true));
+			best[6] = Math.max(best[6], input(nested, false));
+			best[7] = Math.max(best[7], input(nested, true));
+			best[8] = Math.max(best[8], scan(flatChars, false));
+			best[9] = Math.max(best[9], scan(flatChars, true));
+			best[10] = Math.max(best[10], scan(nestedChars, false));
+			best[11] = Math.max(best[11], scan(nestedChars, true));
+			fastest[0] = Math.min(fastest[0], time(() -> parser.parse(flat)));
+			fastest[1] = Math.min(fastest[1], time(() -> parser.parseBinary(flatBinary)));
+			fastest[2] = Math.min(fastest[2], time(() -> parser.parse(nested)));
+			fastest[3] = Math.min(fastest[3], time(() -> parser.parseBinary(nestedBinary)));
+		}
+		System.out.printf("flat,   reader %8.1f MB/s%n", best[0]);
+		System.out.printf("flat,   parser %8.1f MB/s%n", best[1]);
+		System.out.printf("nested, reader %8.1f MB/s%n", best[2]);
+		System.out.printf("nested, parser %8.1f MB/s%n", best[3]);
+		System.out.printf("flat,   input by char %8.1f MB/s, in runs %8.1f MB/s%n", best[4], best[5]);
+		System.out.printf("nested, input by char %8.1f MB/s, in runs %8.1f MB/s%n", best[6], best[7]);
+		System.out.printf("flat,   scan table %8.1f MB/s, SWAR %8.1f MB/s%n", best[8], best[9]);
+		System.out.printf("nested, scan table %8.1f MB/s, SWAR %8.1f MB/s%n", best[10], best[11]);
+		System.out.printf("flat,   text %6.1f ms, binary %6.1f ms, %d of %d bytes%n",
+			fastest[0] / 1e6, fastest[1] / 1e6, flatBinary.length, flat.length());
+		System.out.printf("nested, text %6.1f ms, binary %6.1f ms, %d of %d bytes%n",
+			fastest[2] / 1e6, fastest[3] / 1e6, nestedBinary.length, nested.length());
+		System.out.println(sink);
+	}
+
+	/** Entries with plain and quoted strings, numbers and small arrays */
+	static String flat(int entries) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < entries; i++) {
+			text.append("name of entry ").append(i).append(" : some plain text value, number").append(i).append(": ").append(i * 0.25).append('\n');
+			text.append("description").append(i).append(" : \"A quoted string, with separators: {like} these\"\n");
+			text.append("list").append(i).append(" { alpha, beta, gamma, ").append(i).append(" }\n");
+		}
+		return text.toString();
+	}
+
+	/** Tables nested to the given depth, repeated */
+	static String nested(int depth, int repeat) {
+		StringBuilder text = new StringBuilder();
+		for (int r = 0; r < repeat; r++) {
+			for (int d = 0; d < depth; d++) text.append("level").append(d).append(" { key: value ").append(d).append(", ");
+			text.append("leaf: \"innermost\"");
+			for (int d = 0; d < depth; d++) text.append(" }");
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	/** Only the events, no tables */
+	private static double read(String text, DeXParser parser) {
+		long start = System.nanoTime();
+		DeXReader reader = parser.reader(text);
+		while (reader.hasNext()) {
+			if (reader.next() == DeXReader.Event.VALUE) sink += reader.type().ordinal();
+		}
+		return throughput(text, start);
+	}
+
+	private static double parse(String text, DeXParser parser) {
+		long start = System.nanoTime();
+		sink += parser.parse(text).size();
+		return throughput(text, start);
+	}
+
+	/** Reads all of the text, either every char on its own or the runs between special chars in one go */
+	private static double input(String text, boolean runs) {
+		long start = System.nanoTime();
+		DeXInput in = new DeXInput(new StringReader(text));
+		char[] token = new char[DeXInput.BUFFER_SIZE];
+		for (int c; (c = in.read()) != -1;) {
+			sink += c;
+			if (runs) {
+				int n = in.plain(false);
+				in.copy(token, 0, n);
+				sink += n;
+			}
+		}
+		return throughput(text, start);
+	}
+	
+	/** Finds every char that ends unquoted text */
+	private static double scan(char[] chars, boolean swar) {
+		long start = System.nanoTime();
+		for (int i = 0; i < chars.length; i++) {
+			i += swar ? swar(chars, i, chars.length) : DeXInput.plain(chars, i, chars.length, false);
+			sink++;
+		}
+		return chars.length * 2 / ((System.nanoTime() - start) / 1e9) / 1e6;
+	}
+	
+	/**
+	 * Same as {@link DeXInput#plain(char[], int, int, boolean)} for unquoted text. Brackets and
+	 * braces are folded onto each other, so six tests cover the ten special chars. The few other
+	 * chars they let through are checked with a table.
+	 */
+	private static int swar(char[] chars, int from, int to) {
+		int i = from;
+		for (; i + 4 <= to; i += 4) {
+			// The first char goes to the lowest bits, so matches are found in order
+			long word = chars[i] | (long) chars[i + 1] << 16 | (long) chars[i + 2] << 32 | (long) chars[i + 3] << 48;
+			// [\] become {|}, line breaks * and -
+			long folded = word | LOW_BITS * 0x20;
+			long low = folded & LOW_BITS * 0x7FFF;
+			long found = equal(folded, '"') | equal(folded, ':') | between(folded, low, '*', '-') | between(folded, low, '{', '}');
+			for (; found != 0; found &= found - 1) {
+				int j = i + (Long.numberOfTrailingZeros(found) >>> 4);
+				if (chars[j] < 128 && SPECIAL[chars[j]] != 0) return j - from;
+			}
+		}
+		return i - from + DeXInput.plain(chars, i, to, false);
+	}
+	
+	/** High bit of every char that equals the given one, chars above the first match can be marked wrongly */
+	private static long equal(long word, char c) {
+		long diff = word ^ LOW_BITS * c;
+		return (diff - LOW_BITS) & ~diff & HIGH_BITS;
+	}
+	
+	/** High bit of every char from first to last, low has the high bits cleared */
+	private static long between(long word, long low, char first, char last) {
+		return (LOW_BITS * (0x7FFF + last + 1) - low) & ~word & (low + LOW_BITS * (0x7FFF - first + 1)) & HIGH_BITS;
+	}
+	
+	private static long time(Supplier<DeXTable> parse) {
+		long start = System.nanoTime();
+		sink += parse.get().size();
+		return System.nanoTime() - start;
+	}
+
+	private static double throughput(String text, long start) {
+		return text.length() * 2 / ((System.nanoTime() - start) / 1e9) / 1e6;
+	}
+}
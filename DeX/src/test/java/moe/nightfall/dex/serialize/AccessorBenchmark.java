@@ -0,0 +1,122 @@
+package moe.nightfall.dex.serialize;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.function.Supplier;
+
+/**
+ * Compares the generated accessors with the method handle fallback, boxing
+ * method handles, which is what {@link ClassSerializer} used before, and
+ * plain field access. Run as application.
+ * 
+ * @author Vic
+ */
+public class AccessorBenchmark {
+	
+	public static class Sample {
+		public int x = 1;
+		public double y = 2;
+		public String name = "sample";
+		
+		public Sample() {}
+	}
+	
+	private static final int ITERATIONS = 10_000_000;
+	private static final int RUNS = 5;
+	
+	// Keeps the JIT from removing the loops
+	static long sink;
+	
+	public static void main(String[] args) throws Throwable {
+		Field x = Sample.class.getDeclaredField("x");
+		Field name = Sample.class.getDeclaredField("name");
+		
+		MethodHandle getter = MethodHandles.lookup().unreflectGetter(x).asType(MethodType.methodType(Object.class, Object.class));
+		MethodHandle setter = MethodHandles.lookup().unreflectSetter(x).asType(MethodType.methodType(void.class, Object.class, Object.class));
+		MethodHandle nameGetter = MethodHandles.lookup().unreflectGetter(name).asType(MethodType.methodType(Object.class, Object.class));
+		Constructor<Sample> ctr = Sample.class.getDeclaredConstructor();
+		MethodHandle ctrHandle = MethodHandles.lookup().unreflectConstructor(ctr);
+		
+		Accessor handles = Accessor.handles(x);
+		Accessor nameHandles = Accessor.handles(name);
+		Accessor accessor = Accessor.of(x);
+		Accessor nameAccessor = Accessor.of(name);
+		System.out.println("Accessor: " + accessor.getClass().getSimpleName());
+		Supplier<Sample> supplier = Accessor.constructor(ctr);
+		
+		Object sample = new Sample();
+		for (int run = 0; run < RUNS; run++) {
+			System.out.println("Run " + (run + 1));
+			
+			bench("int get/set, method handles", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					setter.invokeExact(sample, (Object) i);
+					sink += (Integer) (Object) getter.invokeExact(sample);
+				}
+			});
+			bench("int get/set, typed handles", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					handles.setInt(sample, i);
+					sink += handles.getInt(sample);
+				}
+			});
+			bench("int get/set, accessor", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					accessor.setInt(sample, i);
+					sink += accessor.getInt(sample);
+				}
+			});
+			bench("int get/set, field", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					((Sample) sample).x = i;
+					sink += ((Sample) sample).x;
+				}
+			});
+			bench("object get, method handles", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					sink += ((Object) nameGetter.invokeExact(sample)).hashCode();
+				}
+			});
+			bench("object get, typed handles", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					sink += nameHandles.get(sample).hashCode();
+				}
+			});
+			bench("object get, accessor", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					sink += nameAccessor.get(sample).hashCode();
+				}
+			});
+			bench("object get, field", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					sink += ((Sample) sample).name.hashCode();
+				}
+			});
+			bench("constructor, method handle", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					sink += ((Sample) ctrHandle.invoke()).x;
+				}
+			});
+			bench("constructor, lambda", () -> {
+				for (int i = 0; i < ITERATIONS; i++) {
+					sink += supplier.get().x;
+				}
+			});
+		}
+		System.out.println(sink);
+	}
+	
+	private interface Body {
+		void run() throws Throwable;
+	}
+	
+	private static void bench(String name, Body body) throws Throwable {
+		long start = System.nanoTime();
+		body.run();
+		double nanos = (System.nanoTime() - start) / (double) ITERATIONS;
+		System.out.printf("  %-30s %6.2f ns/op%n", name, nanos);
+	}
+}
@@ -0,0 +1,148 @@
+package moe.nightfall.dex.serialize;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+
+public class AccessorTest {
+
+	static class Fields {
+		boolean z;
+		byte b;
+		char c;
+		short s;
+		int i;
+		long l;
+		float f;
+		double d;
+		String string;
+		final int fixed = 1;
+		volatile long shared;
+		private int[] hidden;
+		Fields self;
+	}
+
+	private interface Factory {
+		Accessor create(Field field) throws IllegalAccessException;
+	}
+	
+	/** Both kinds of accessors have to behave the same */
+	private static final Factory[] FACTORIES = { Accessor::of, Accessor::handles };
+	
+	private Factory factory;
+	
+	private Accessor accessor(String name) throws Exception {
+		Field field = Fields.class.getDeclaredField(name);
+		field.setAccessible(true);
+		return factory.create(field);
+	}
+
+	/** Every value has to come out of reflection just like it went in through the accessor */
+	private void check(String name, Object value) throws Exception {
+		Field field = Fields.class.getDeclaredField(name);
+		field.setAccessible(true);
+		Accessor accessor = accessor(name);
+
+		Fields obj = new Fields();
+		accessor.set(obj, value);
+		assertThat(field.get(obj)).isEqualTo(value);
+		assertThat(accessor.get(obj)).isEqualTo(value);
+	}
+
+	@Test
+	public void testGenerated() throws Exception {
+		factory = Accessor::of;
+		// Hidden classes need Java 15, final fields can only be written by their class
+		Class<?> generated = AccessorGenerator.isAvailable() ? Accessor.Generated.class : Accessor.Handles.class;
+		for (String name : new String[] { "z", "c", "l", "f", "string", "shared", "hidden", "self" }) {
+			assertThat(accessor(name)).as(name).isInstanceOf(generated);
+		}
+		assertThat(accessor("fixed")).isInstanceOf(Accessor.Handles.class);
+	}
+	
+	@Test
+	public void testPrimitives() throws Exception {
+		for (Factory factory : FACTORIES) {
+			this.factory = factory;
+			testPrimitives(new Fields());
+		}
+	}
+
+	private void testPrimitives(Fields obj) throws Exception {
+		accessor("z").setBoolean(obj, true);
+		accessor("b").setByte(obj, (byte) -5);
+		accessor("c").setChar(obj, 'x');
+		accessor("s").setShort(obj, (short) 300);
+		accessor("i").setInt(obj, 70000);
+		accessor("l").setLong(obj, 9007199254740993L);
+		accessor("f").setFloat(obj, 1.5F);
+		accessor("d").setDouble(obj, 0.25);
+
+		assertThat(obj.z).isTrue();
+		assertThat(obj.b).isEqualTo((byte) -5);
+		assertThat(obj.c).isEqualTo('x');
+		assertThat(obj.s).isEqualTo((short) 300);
+		assertThat(obj.i).isEqualTo(70000);
+		assertThat(obj.l).isEqualTo(9007199254740993L);
+		assertThat(obj.f).isEqualTo(1.5F);
+		assertThat(obj.d).isEqualTo(0.25);
+
+		assertThat(accessor("z").getBoolean(obj)).isTrue();
+		assertThat(accessor("b").getByte(obj)).isEqualTo((byte) -5);
+		assertThat(accessor("c").getChar(obj)).isEqualTo('x');
+		assertThat(accessor("s").getShort(obj)).isEqualTo((short) 300);
+		assertThat(accessor("i").getInt(obj)).isEqualTo(70000);
+		assertThat(accessor("l").getLong(obj)).isEqualTo(9007199254740993L);
+		assertThat(accessor("f").getFloat(obj)).isEqualTo(1.5F);
+		assertThat(accessor("d").getDouble(obj)).isEqualTo(0.25);
+
+		// Boxed access
+		check("z", false);
+		check("b", Byte.MIN_VALUE);
+		check("c", Character.MAX_VALUE);
+		check("s", Short.MAX_VALUE);
+		check("i", Integer.MIN_VALUE);
+		check("l", Long.MAX_VALUE);
+		check("f", Float.NaN);
+		check("d", -0.0);
+		check("string", "text");
+		check("string", null);
+		check("hidden", new int[] { 1, 2 });
+		check("self", new Fields());
+
+		// Only the exact type is accepted
+		assertThatThrownBy(() -> accessor("i").set(new Fields(), 1L)).isInstanceOf(ClassCastException.class);
+		assertThatThrownBy(() -> accessor("string").set(new Fields(), 1)).isInstanceOf(ClassCastException.class);
+		assertThatThrownBy(() -> accessor("i").getInt("not fields")).isInstanceOf(ClassCastException.class);
+	}
+
+	@Test
+	public void testFinalAndVolatile() throws Exception {
+		for (Factory factory : FACTORIES) {
+			this.factory = factory;
+			testFinalAndVolatile(new Fields());
+		}
+	}
+	
+	private void testFinalAndVolatile(Fields obj) throws Exception {
+		Accessor fixed = accessor("fixed");
+		fixed.setInt(obj, 5);
+		assertThat(fixed.getInt(obj)).isEqualTo(5);
+		assertThat(fixed.get(obj)).isEqualTo(5);
+
+		Accessor shared = accessor("shared");
+		shared.setLong(obj, Long.MIN_VALUE);
+		assertThat(obj.shared).isEqualTo(Long.MIN_VALUE);
+		assertThat(shared.getLong(obj)).isEqualTo(Long.MIN_VALUE);
+		check("shared", 42L);
+
+		// Written from another thread, read through the accessor
+		Thread thread = new Thread(() -> obj.shared = 7);
+		thread.start();
+		thread.join();
+		assertThat(shared.getLong(obj)).isEqualTo(7);
+	}
+}